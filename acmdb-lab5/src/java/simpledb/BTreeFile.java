@@ -3,9 +3,12 @@ package simpledb;
 import simpledb.Predicate.Op;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -27,6 +30,7 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private int keyField;
+    private final PageFile io;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -41,6 +45,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.io = PageFile.of(f);
     }
 
     /**
@@ -81,60 +86,44 @@ public class BTreeFile implements DbFile {
      */
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
-        BufferedInputStream bis = null;
-
+        int size = id.pgcateg() == BTreePageId.ROOT_PTR ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+        byte pageBuf[] = new byte[size];
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-                BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
-                return p;
-            } else {
-                byte pageBuf[] = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (id.pageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-                    return p;
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-                    return p;
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-                    return p;
-                }
+            int retval = io.read(ByteBuffer.wrap(pageBuf), offsetOf(id));
+            DiskStats.BTREE.read(retval);
+            if (retval == 0) {
+                throw new IllegalArgumentException("Read past end of table");
+            }
+            if (retval < size) {
+                throw new IllegalArgumentException("Unable to read " + size + " bytes from BTreeFile");
             }
+            Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
+            return createPage(id, pageBuf);
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
+        }
+    }
+
+    /**
+     * @return the offset of a page in the file: the root pointer page comes
+     * first, followed by the other pages from number 1 on
+     */
+    private static long offsetOf(BTreePageId id) {
+        if (id.pgcateg() == BTreePageId.ROOT_PTR) return 0;
+        return BTreeRootPtrPage.getPageSize() + (long) (id.pageNumber() - 1) * BufferPool.getPageSize();
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        BTreePageId id = (BTreePageId) pid;
+        if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+            return new BTreeRootPtrPage(id, data);
+        } else if (id.pgcateg() == BTreePageId.INTERNAL) {
+            return new BTreeInternalPage(id, data, keyField);
+        } else if (id.pgcateg() == BTreePageId.LEAF) {
+            return new BTreeLeafPage(id, data, keyField);
+        } else { // id.pgcateg() == BTreePageId.HEADER
+            return new BTreeHeaderPage(id, data);
         }
     }
 
@@ -148,15 +137,38 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
-        } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+        io.write(ByteBuffer.wrap(data), offsetOf(id));
+        DiskStats.BTREE.written(data.length);
+    }
+
+    /**
+     * Write the pages in file order, each run of adjacent pages with a single
+     * gathering write, and force the file once.
+     *
+     * @see PageFile#writeBatch(long[], byte[][])
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        long[] offsets = new long[pages.size()];
+        byte[][] data = new byte[pages.size()][];
+        long bytes = 0;
+        for (int i = 0; i < data.length; i++) {
+            Page page = pages.get(i);
+            offsets[i] = offsetOf((BTreePageId) page.getId());
+            data[i] = page.getPageData();
+            bytes += data[i].length;
         }
+        io.writeBatch(offsets, data);
+        DiskStats.BTREE.written(bytes);
+    }
+
+    /**
+     * Read the pages of this file from a memory mapping of it, or stop
+     * doing so; this holds for every DbFile on the same file.
+     *
+     * @see PageFile#setMapped(boolean)
+     */
+    public void setMemoryMapped(boolean mapped) {
+        io.setMapped(mapped);
     }
 
     /**
@@ -164,7 +176,11 @@ public class BTreeFile implements DbFile {
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        try {
+            return (int) ((io.size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -175,31 +191,72 @@ public class BTreeFile implements DbFile {
     }
 
     /**
-     * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-     * the left-most page possibly containing the key field f. It locks all internal
-     * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * Function which finds and locks the leaf page in the B+ tree corresponding to
+     * the left-most page possibly containing the key field f. The descent crabs
+     * down from pid: each internal node (or the root pointer) along the path is
+     * only latched, i.e. locked with READ_ONLY permission until the lock on the
+     * next node is granted, unless the transaction had locked it already. Only the
+     * leaf node stays locked, with permission perm.
+     * <p>
+     * The descent never waits for a lock while holding a latch, as the holder of
+     * the lock may be waiting for the latch to split the page. It releases the
+     * latch instead, waits, and starts over from pid, since the tree may have
+     * changed in the meantime; pass the root pointer so that this sees new roots.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
      *
      * @param tid        - the transaction id
      * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-     * @param pid        - the current page being searched
+     * @param pid        - the page to start the search from, typically the root pointer
      * @param perm       - the permissions with which to lock the leaf page
      * @param f          - the field to search for
-     * @return the left-most leaf page possibly containing the key field f
+     * @param latches    - if not null, the leaf page may be only latched too: its id is added
+     *                   to latches unless the transaction had locked it already, and the caller
+     *                   may release it once read, as long as it did not change it
+     * @return the left-most leaf page possibly containing the key field f, or null
+     * if the tree has no root yet
      */
     private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+                                       Field f, HashSet<BTreePageId> latches)
             throws DbException, TransactionAbortedException {
-        if (pid.pgcateg() == BTreePageId.LEAF) return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-        Iterator<BTreeEntry> iterator = ((BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).iterator();
+        BTreePageId latched = null;
+        BTreePageId next = pid;
+        while (next != null) {
+            Permissions nextPerm = next.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY;
+            boolean held = isLocked(tid, dirtypages, next);
+            Page page = tryGetPage(tid, dirtypages, next, nextPerm);
+            if (page == null) {
+                unlatch(tid, dirtypages, latched);
+                latched = null;
+                getPage(tid, dirtypages, next, nextPerm);
+                if (!held) unlatch(tid, dirtypages, next);
+                next = pid;
+                continue;
+            }
+            unlatch(tid, dirtypages, latched);
+            if (next.pgcateg() == BTreePageId.LEAF) {
+                if (latches != null && !held) latches.add(next);
+                return (BTreeLeafPage) page;
+            }
+            latched = held ? null : next;
+            next = next.pgcateg() == BTreePageId.ROOT_PTR ? ((BTreeRootPtrPage) page).getRootId()
+                    : findChild((BTreeInternalPage) page, f);
+        }
+        unlatch(tid, dirtypages, latched);
+        return null;
+    }
+
+    /**
+     * @return the left-most child of the internal page possibly containing the key field f
+     */
+    private BTreePageId findChild(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> iterator = page.iterator();
         while (true) {
             BTreeEntry entry = iterator.next();
             if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey()))
-                return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+                return entry.getLeftChild();
             if (!iterator.hasNext())
-                return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+                return entry.getRightChild();
         }
     }
 
@@ -212,12 +269,60 @@ public class BTreeFile implements DbFile {
      * @param perm - the permissions with which to lock the leaf page
      * @param f    - the field to search for
      * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+     * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field, HashSet)
      */
     BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
                                Field f)
             throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+        return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f, null);
+    }
+
+    /**
+     * Find and latch the leaf page like {@link #findLeafPage(TransactionId, BTreePageId, Permissions, Field)}
+     * for reading, starting from the root pointer. The id of the leaf page is added to
+     * latches unless the transaction had locked it already; the caller is to release it
+     * with {@link BufferPool#releasePage(TransactionId, PageId)} once read.
+     *
+     * @return the leaf page, or null if the tree has no root yet
+     */
+    BTreeLeafPage latchLeafPage(TransactionId tid, Field f, HashSet<BTreePageId> latches)
+            throws DbException, TransactionAbortedException {
+        return findLeafPage(tid, new HashMap<PageId, Page>(), BTreeRootPtrPage.getId(tableid),
+                Permissions.READ_ONLY, f, latches);
+    }
+
+    /**
+     * Find the key following the key field f in this B+ tree, for key-range locking:
+     * the smallest key greater than f, looking from the given leaf page on to the
+     * right. Sibling pages are only latched while read.
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param leaf       - the left-most leaf page possibly containing the key field f
+     * @param f          - the key field
+     * @return the following key, or the end of the index if there is none
+     */
+    private IndexKey findNextKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf, Field f)
+            throws DbException, TransactionAbortedException {
+        BTreeLeafPage page = leaf;
+        BTreePageId latched = null;
+        try {
+            while (true) {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    Field key = it.next().getField(keyField);
+                    if (key.compare(Op.GREATER_THAN, f)) return new IndexKey(tableid, key);
+                }
+                BTreePageId right = page.getRightSiblingId();
+                if (right == null) return new IndexKey(tableid, null);
+                boolean held = isLocked(tid, dirtypages, right);
+                page = (BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_ONLY);
+                unlatch(tid, dirtypages, latched);
+                latched = held ? null : right;
+            }
+        } finally {
+            unlatch(tid, dirtypages, latched);
+        }
     }
 
     /**
@@ -380,11 +485,14 @@ public class BTreeFile implements DbFile {
     private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
             throws DbException, IOException, TransactionAbortedException {
 
+        boolean held = isLocked(tid, dirtypages, child);
         BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
         if (!p.getParentId().equals(pid)) {
             p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
             p.setParentId(pid);
+        } else if (!held) {
+            unlatch(tid, dirtypages, child);
         }
 
     }
@@ -446,6 +554,37 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    /**
+     * Like {@link #getPage(TransactionId, HashMap, BTreePageId, Permissions)}, but
+     * returns null instead of waiting for a lock.
+     */
+    private Page tryGetPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+            throws DbException {
+        if (dirtypages.containsKey(pid)) return dirtypages.get(pid);
+        Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+        if (p != null && perm == Permissions.READ_WRITE) dirtypages.put(pid, p);
+        return p;
+    }
+
+    /**
+     * @return true if the transaction has locked the page already, so that it must
+     * keep the lock
+     */
+    private boolean isLocked(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+        return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+    }
+
+    /**
+     * Release the latch on a page: the lock on it taken only to read it in
+     * passing, which must not have been used to change it. Does nothing if pid
+     * is null.
+     */
+    private void unlatch(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+        if (pid == null) return;
+        dirtypages.remove(pid);
+        Database.getBufferPool().releasePage(tid, pid);
+    }
+
     /**
      * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
      * May cause pages to split if the page where tuple t belongs is full.
@@ -459,26 +598,48 @@ public class BTreeFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        BufferPool bp = Database.getBufferPool();
+        Field key = t.getField(keyField);
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
+        // key-range locking: lock the new key, so that scans reading it wait for this
+        // transaction, before any page, as scans may wait for pages while holding keys
+        bp.lockKey(tid, new IndexKey(tableid, key), LockMode.EXCLUSIVE);
 
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
+        // find and lock the left-most leaf page corresponding to the key field,
+        // latching the root pointer and the internal pages on the way down
+        createIfEmpty();
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        ArrayList<IndexKey> momentary = new ArrayList<IndexKey>();
+        BTreeLeafPage leafPage;
+        while (true) {
+            HashSet<BTreePageId> latches = new HashSet<BTreePageId>();
+            leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, key, latches);
+            if (leafPage == null) { // the root has just been created, so set the root pointer to point to it
+                BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+                if (rootPtr.getRootId() == null)
+                    rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+                continue;
+            }
+
+            // lock the key following the new one for a moment, to wait for the scans that
+            // read across the gap the new key goes into. Do not wait holding a leaf page
+            // locked only now: the scans may be waiting for it; start over instead
+            IndexKey next = findNextKey(tid, dirtypages, leafPage, key);
+            boolean held = bp.holdsKeyLock(tid, next, LockMode.SHARED);
+            if (!held) momentary.add(next);
+            if (bp.tryLockKey(tid, next, LockMode.EXCLUSIVE)) break;
+            for (BTreePageId pid : latches) unlatch(tid, dirtypages, pid);
+            bp.lockKey(tid, next, LockMode.EXCLUSIVE);
         }
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+        // split the leaf page if there are no more slots available
         if (leafPage.getNumEmptySlots() == 0) {
             leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
         }
 
         // insert the tuple into the leaf page
         leafPage.insertTuple(t);
+        for (IndexKey next : momentary) bp.releaseKey(tid, next);
 
         ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
         dirtyPagesArr.addAll(dirtypages.values());
@@ -869,9 +1030,18 @@ public class BTreeFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
+        // key-range locking: lock the key, so that scans reading it wait for this
+        // transaction, before the page, as scans may wait for pages while holding keys
+        Database.getBufferPool().lockKey(tid, new IndexKey(tableid, t.getField(keyField)), LockMode.EXCLUSIVE);
+
         BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(),
                 BTreePageId.LEAF);
+        boolean held = isLocked(tid, dirtypages, pageId);
         BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+        if (!isStoredAt(page, t)) {
+            if (!held) unlatch(tid, dirtypages, pageId);
+            page = relocate(tid, dirtypages, t);
+        }
         page.deleteTuple(t);
 
         // if the page is below minimum occupancy, get some tuples from its siblings
@@ -886,6 +1056,55 @@ public class BTreeFile implements DbFile {
         return dirtyPagesArr;
     }
 
+    /**
+     * @return true if the record id of the tuple refers to a tuple on the page with
+     * the same fields
+     */
+    private boolean isStoredAt(BTreeLeafPage page, Tuple t) {
+        int slot = t.getRecordId().tupleno();
+        return slot >= 0 && slot < page.getMaxTuples() && page.isSlotUsed(slot)
+                && sameFields(page.getTuple(slot), t);
+    }
+
+    private static boolean sameFields(Tuple t1, Tuple t2) {
+        Iterator<Field> fields1 = t1.fields();
+        Iterator<Field> fields2 = t2.fields();
+        while (fields1.hasNext() && fields2.hasNext())
+            if (!fields1.next().equals(fields2.next())) return false;
+        return !fields1.hasNext() && !fields2.hasNext();
+    }
+
+    /**
+     * Find a tuple whose record id is out of date, which happens when a tuple read
+     * by a key-range locked scan is moved to another page by the split or merge of
+     * another transaction, and update its record id. The key of the tuple must be
+     * locked.
+     *
+     * @return the leaf page holding the tuple, locked with READ_WRITE permission
+     * @throws DbException if no tuple with the same fields is in this file
+     */
+    private BTreeLeafPage relocate(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+            throws DbException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        BTreeLeafPage page = findLeafPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE,
+                key, null);
+        while (page != null) {
+            boolean past = false;
+            Iterator<Tuple> it = page.iterator();
+            while (!past && it.hasNext()) {
+                Tuple stored = it.next();
+                past = stored.getField(keyField).compare(Op.GREATER_THAN, key);
+                if (!past && sameFields(stored, t)) {
+                    t.setRecordId(stored.getRecordId());
+                    return page;
+                }
+            }
+            BTreePageId right = past ? null : page.getRightSiblingId();
+            page = right == null ? null : (BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_WRITE);
+        }
+        throw new DbException("tried to delete tuple not in file");
+    }
+
     /**
      * Get a read lock on the root pointer page. Create the root pointer page and root page
      * if necessary.
@@ -898,21 +1117,25 @@ public class BTreeFile implements DbFile {
      * @throws TransactionAbortedException
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        createIfEmpty();
+
+        // get a read lock on the root pointer page
+        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Create the root pointer page and the root page if the file is empty.
+     */
+    private void createIfEmpty() throws IOException {
         synchronized (this) {
-            if (f.length() == 0) {
+            if (io.size() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                io.write(ByteBuffer.wrap(emptyRootPtrData), 0);
+                io.write(ByteBuffer.wrap(emptyLeafData), emptyRootPtrData.length);
             }
         }
-
-        // get a read lock on the root pointer page
-        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
     /**
@@ -928,18 +1151,27 @@ public class BTreeFile implements DbFile {
      */
     protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
             throws DbException, IOException, TransactionAbortedException {
-        // get a read lock on the root pointer page and use it to locate the first header page
+        // latch the root pointer page and use it to locate the first header page;
+        // header pages are only latched too while searching for an empty slot, which
+        // is checked again once its header page is locked
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+        boolean held = isLocked(tid, dirtypages, rootPtrId);
         BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
         BTreePageId headerId = rootPtr.getHeaderId();
+        if (!held) unlatch(tid, dirtypages, rootPtrId);
         int emptyPageNo = 0;
 
         if (headerId != null) {
+            held = isLocked(tid, dirtypages, headerId);
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
             int headerPageCount = 0;
             // try to find a header page with an empty slot
             while (headerPage != null && headerPage.getEmptySlot() == -1) {
+                BTreePageId prevId = headerId;
                 headerId = headerPage.getNextPageId();
+                if (!held) unlatch(tid, dirtypages, prevId);
                 if (headerId != null) {
+                    held = isLocked(tid, dirtypages, headerId);
                     headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
                     headerPageCount++;
                 } else {
@@ -947,12 +1179,19 @@ public class BTreeFile implements DbFile {
                 }
             }
 
-            // if headerPage is not null, it must have an empty slot
+            // if headerPage is not null, it had an empty slot; do not wait for the
+            // write lock on the page while holding its latch
             if (headerPage != null) {
+                if (!held) unlatch(tid, dirtypages, headerId);
                 headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
                 int emptySlot = headerPage.getEmptySlot();
-                headerPage.markSlotUsed(emptySlot, true);
-                emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+                if (emptySlot == -1) {
+                    // taken in the meantime
+                    headerId = null;
+                } else {
+                    headerPage.markSlotUsed(emptySlot, true);
+                    emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+                }
             }
         }
 
@@ -961,11 +1200,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                io.write(ByteBuffer.wrap(emptyData), io.size());
                 emptyPageNo = numPages();
             }
         }
@@ -995,10 +1231,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        io.write(ByteBuffer.wrap(BTreePage.createEmptyPageData()), offsetOf(newPageId));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1127,6 +1360,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
     BTreeLeafPage curp = null;
+    ReadAhead readAhead = null;
 
     TransactionId tid;
     BTreeFile f;
@@ -1146,11 +1380,12 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+        curp = f.findLeafPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, null);
+        if (curp == null) return;
+        Database.getBufferPool().pinPage(tid, curp.getId(), Permissions.READ_ONLY);
         it = curp.iterator();
+        readAhead = ReadAhead.isEnabled() ? new ReadAhead(Database.getBufferPool()) : null;
+        if (readAhead != null) readAhead.leafAccessed(f, curp);
     }
 
     /**
@@ -1166,11 +1401,13 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
+            Database.getBufferPool().unpinPage(tid, curp.getId());
             if (nextp == null) {
                 curp = null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+                curp = (BTreeLeafPage) Database.getBufferPool().pinPage(tid,
                         nextp, Permissions.READ_ONLY);
+                if (readAhead != null) readAhead.leafAccessed(f, curp);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1195,19 +1432,35 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null) Database.getBufferPool().unpinPage(tid, curp.getId());
         it = null;
         curp = null;
+        readAhead = null;
     }
 }
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File.
+ * <p>
+ * Rather than locking the leaf pages it reads, the iterator protects against
+ * phantoms with key-range locking: it locks every key it returns, and the
+ * first key past the range (or the end of the index), each of which guards
+ * the gap below it against inserts. Leaf pages are only latched while their
+ * tuples are collected, one page at a time; every page is looked up from the
+ * root again, from the last key returned, as the tree may have changed
+ * meanwhile.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
     Iterator<Tuple> it = null;
-    BTreeLeafPage curp = null;
+    boolean done = true;
+    // the position of the iterator: the last key returned, and how many
+    // tuples with that key have been returned
+    Field lastKey = null;
+    int lastKeyCount = 0;
+    BTreePageId lastLeaf = null;
+    ReadAhead readAhead = null;
 
     TransactionId tid;
     BTreeFile f;
@@ -1227,63 +1480,148 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     }
 
     /**
-     * Open this iterator by getting an iterator on the first leaf page applicable
-     * for the given predicate operation
+     * Open this iterator at the beginning of the tuples matching the predicate
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
-                || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-        } else {
-            curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-        }
-        it = curp.iterator();
+        it = null;
+        done = false;
+        lastKey = null;
+        lastKeyCount = 0;
+        lastLeaf = null;
+        readAhead = ReadAhead.isEnabled() ? new ReadAhead(Database.getBufferPool()) : null;
     }
 
     /**
-     * Read the next tuple either from the current page if it has more tuples matching
-     * the predicate or from the next page by following the right sibling pointer.
+     * Read the next tuple from the tuples collected from the current page, or
+     * collect those of the next page with tuples matching the predicate.
      *
      * @return the next tuple matching the predicate, or null if none exists
      */
     @Override
     protected Tuple readNext() throws TransactionAbortedException, DbException,
             NoSuchElementException {
-        while (it != null) {
-
-            while (it.hasNext()) {
+        while (true) {
+            if (it != null && it.hasNext()) {
                 Tuple t = it.next();
-                if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-                    return t;
-                } else if (ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-                    // if the predicate was not satisfied and the operation is less than, we have
-                    // hit the end
-                    return null;
-                } else if (ipred.getOp() == Op.EQUALS &&
-                        t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-                    // if the tuple is now greater than the field passed in and the operation
-                    // is equals, we have reached the end
-                    return null;
+                Field key = t.getField(f.keyField());
+                if (lastKey != null && key.equals(lastKey)) {
+                    lastKeyCount++;
+                } else {
+                    lastKey = key;
+                    lastKeyCount = 1;
                 }
+                return t;
             }
+            if (done) return null;
+            it = collect();
+        }
+    }
 
-            BTreePageId nextp = curp.getRightSiblingId();
-            // if there are no more pages to the right, end the iteration
-            if (nextp == null) {
-                return null;
-            } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
-                it = curp.iterator();
+    /**
+     * Collect the tuples matching the predicate from the first page past the
+     * position of the iterator with any, and lock their keys. Sets done if
+     * there are no more tuples to collect.
+     *
+     * @return the tuples collected
+     */
+    private Iterator<Tuple> collect() throws TransactionAbortedException, DbException {
+        BufferPool bp = Database.getBufferPool();
+        Op op = ipred.getOp();
+        Field start = lastKey != null ? lastKey
+                : op == Op.EQUALS || op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ ? ipred.getField()
+                : null;
+        ArrayList<Tuple> found = new ArrayList<Tuple>();
+        HashSet<BTreePageId> latches = new HashSet<BTreePageId>();
+        BTreeLeafPage page = f.latchLeafPage(tid, start, latches);
+        if (page == null) {
+            done = true;
+            return found.iterator();
+        }
+        int skip = lastKeyCount;
+        try {
+            while (true) {
+                // a page is typically visited again to find the position past it
+                if (readAhead != null && !page.getId().equals(lastLeaf)) readAhead.leafAccessed(f, page);
+                lastLeaf = page.getId();
+                IndexKey stop = null;
+                Iterator<Tuple> tuples = page.iterator();
+                while (stop == null && tuples.hasNext()) {
+                    Tuple t = tuples.next();
+                    Field key = t.getField(f.keyField());
+                    if (lastKey != null) {
+                        // skip what has been returned already
+                        if (key.compare(Op.LESS_THAN, lastKey)) continue;
+                        if (key.equals(lastKey) && skip > 0) {
+                            skip--;
+                            continue;
+                        }
+                    }
+                    if (key.compare(op, ipred.getField())) {
+                        found.add(t);
+                    } else if (op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ
+                            || (op == Op.EQUALS && key.compare(Op.GREATER_THAN, ipred.getField()))) {
+                        // the first key past the range
+                        stop = new IndexKey(f.getId(), key);
+                    }
+                }
+                BTreePageId right = page.getRightSiblingId();
+                if (stop == null && right == null) stop = new IndexKey(f.getId(), null);
+
+                // never wait for a key lock while holding a latch: wait without it, and
+                // start over, as the page may have changed meanwhile
+                IndexKey wait = tryLockKeys(found, stop);
+                if (wait != null) {
+                    release(latches);
+                    bp.lockKey(tid, wait, LockMode.SHARED);
+                    return collect();
+                }
+                if (stop != null) done = true;
+                if (done || !found.isEmpty()) return found.iterator();
+
+                // nothing to return here: move on to the right sibling, without waiting
+                // for it while holding the latch on this page either
+                boolean held = bp.holdsLock(tid, right);
+                page = (BTreeLeafPage) bp.tryGetPage(tid, right, Permissions.READ_ONLY);
+                if (page == null) {
+                    release(latches);
+                    bp.getPage(tid, right, Permissions.READ_ONLY);
+                    if (!held) bp.releasePage(tid, right);
+                    return collect();
+                }
+                release(latches);
+                if (!held) latches.add(right);
             }
+        } finally {
+            release(latches);
         }
+    }
 
+    /**
+     * Lock the keys of the tuples and the given key in shared mode, if that
+     * needs no wait.
+     *
+     * @param stop the first key past the range, or null
+     * @return null if all keys are locked, else the key that needs a wait
+     */
+    private IndexKey tryLockKeys(ArrayList<Tuple> tuples, IndexKey stop) {
+        BufferPool bp = Database.getBufferPool();
+        Field prev = null;
+        for (Tuple t : tuples) {
+            Field key = t.getField(f.keyField());
+            if (prev != null && key.equals(prev)) continue;
+            prev = key;
+            IndexKey lock = new IndexKey(f.getId(), key);
+            if (!bp.tryLockKey(tid, lock, LockMode.SHARED)) return lock;
+        }
+        if (stop != null && !bp.tryLockKey(tid, stop, LockMode.SHARED)) return stop;
         return null;
     }
 
+    private void release(HashSet<BTreePageId> latches) {
+        for (BTreePageId pid : latches) Database.getBufferPool().releasePage(tid, pid);
+        latches.clear();
+    }
+
     /**
      * rewind this iterator back to the beginning of the tuples
      */
@@ -1298,5 +1636,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        done = true;
+        readAhead = null;
     }
 }
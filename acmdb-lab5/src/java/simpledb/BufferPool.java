@@ -1,9 +1,12 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,9 +15,64 @@ import java.util.concurrent.Semaphore;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. Page locks are managed by a
+ * {@link LockManager}. Locks are hierarchical: a page is locked after its
+ * table in an intention mode (see {@link LockMode}), and a lock on the
+ * whole table (see {@link #lockTable(TransactionId, int, LockMode)})
+ * makes page locks it covers unnecessary. A transaction taking many page or
+ * tuple locks on one table has them replaced by a table lock (escalation).
+ * <p>
+ * Read-only transactions may instead read from a snapshot (see
+ * {@link #beginSnapshot(TransactionId)}): they take no locks and see the
+ * pages as committed when they started, kept in a {@link VersionStore} if
+ * they have been changed since. A transaction declared read-only (see
+ * {@link #beginReadOnly(TransactionId)}) locks as usual, but cannot write
+ * and has nothing to flush or roll back when it completes.
+ * <p>
+ * When the pool is full, the page to evict is chosen by a pluggable
+ * {@link ReplacementPolicy} (see {@link #createPolicy(String, int)}).
+ * <p>
+ * The pool may be split into partitions: page ids are hashed to one of N
+ * partitions, each with its own frames and replacement state, so
+ * page fetches on different partitions proceed without contention. Only the
+ * total number of resident pages is bounded, not the size of each partition.
+ * <p>
+ * By default the pool runs NO STEAL / FORCE: a committing transaction writes
+ * its pages to disk. With a {@link PageCleaner} started (see
+ * {@link #startPageCleaner(int, int, int, long)}) it runs NO FORCE instead:
+ * commit only writes UPDATE records to the log, and the committed dirty
+ * pages are written back in the background, or on eviction if the cleaner
+ * falls behind.
+ * <p>
+ * Scans of tables much larger than the pool read through a {@link ScanRing}
+ * and leave the main pool alone. Pages read ahead of scans (see
+ * {@link ReadAhead}) are kept the same way until a transaction asks for them.
+ * <p>
+ * Clean pages evicted from the pool can be kept in a second tier: a
+ * {@link PageArena} in direct memory, which does not load the garbage
+ * collector (see {@link #setArena(PageArena)}), or a
+ * {@link CompressedPageCache}, which holds more pages in the same memory
+ * (see {@link #setCompressedCache(CompressedPageCache)}).
+ * <p>
+ * Operators pin the pages they are working on (see
+ * {@link #pinPage(TransactionId, PageId, Permissions)}); a pinned page is
+ * never evicted. Pins left over are dropped when the transaction completes.
+ * <p>
+ * The pool can be resized while in use (see {@link #resize(int)}).
+ * <p>
+ * Heap files may lock single tuples instead of pages (see
+ * {@link #setRecordLocking(boolean)}): inserts and deletes then take record
+ * locks and only latch the page while changing it, and the changes are
+ * kept in an {@link UndoLog}, so that transactions sharing a page commit
+ * and abort independently.
  *
- * @Threadsafe all fields are final
+ * @Threadsafe the page maps of each partition are concurrent, its pins and
+ * replacement state are guarded by its monitor, the counters and the number
+ * of resident pages are atomics, and the settings
+ * (the size, the cleaner, the second tier, the scan ring and escalation
+ * thresholds) are volatile, so they may change while the pool is in use;
+ * starting and stopping the cleaner and the hot page timer synchronize on
+ * the pool.
  */
 public class BufferPool {
     /**
@@ -31,218 +89,856 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    private final Map<PageId, Page> pool;
-    private final int numPages;
-    private final Map<PageId, ReadWriteSemaphore> lockMap;
-    private final Map<TransactionPagePair, LockInfo> locks;
+    /**
+     * Replacement policy used by the BufferPool(int) constructor. Override with
+     * -Dsimpledb.BufferPool.policy=clock|lru-k|2q; the K of LRU-K is read from
+     * simpledb.BufferPool.lruK.
+     */
+    public static final String DEFAULT_POLICY = "clock";
 
-    private final DependencyGraph graph = new DependencyGraph();
+    /**
+     * Number of partitions used by the BufferPool(int) constructor. Override
+     * with -Dsimpledb.BufferPool.partitions=N.
+     */
+    public static final int DEFAULT_PARTITIONS = 1;
 
-    private static class DependencyGraph {
-        private static class SemaWrite {
-            public ReadWriteSemaphore semaphore;
-            public boolean write;
+    /**
+     * Settings of the page cleaner started by the BufferPool(int) constructor
+     * when -Dsimpledb.BufferPool.cleaner=true. Override with
+     * simpledb.BufferPool.cleanerPagesPerSecond, cleanerLowWatermark and
+     * cleanerHighWatermark (percent of the pool) and cleanerIntervalMs.
+     */
+    public static final int DEFAULT_CLEANER_PAGES_PER_SECOND = 1000;
+    public static final int DEFAULT_CLEANER_LOW_WATERMARK = 10;
+    public static final int DEFAULT_CLEANER_HIGH_WATERMARK = 30;
+    public static final long DEFAULT_CLEANER_INTERVAL_MS = 100;
 
-            public SemaWrite(ReadWriteSemaphore semaphore, boolean write) {
-                this.semaphore = semaphore;
-                this.write = write;
-            }
-        }
+    /**
+     * Scans of files larger than this fraction of the pool read through a
+     * ScanRing of DEFAULT_SCAN_RING_SIZE pages; by default only files that
+     * could not be cached anyway. Override with
+     * -Dsimpledb.BufferPool.scanRingThreshold and scanRingSize.
+     */
+    public static final double DEFAULT_SCAN_RING_THRESHOLD = 1.0;
+    public static final int DEFAULT_SCAN_RING_SIZE = 8;
 
-        private static class TransactionWrite {
-            public TransactionId tid;
-            public boolean write;
+    /**
+     * Number of pages of the off-heap PageArena set up by the BufferPool(int)
+     * constructor; 0 for none. Override with -Dsimpledb.BufferPool.arenaPages.
+     */
+    public static final int DEFAULT_ARENA_PAGES = 0;
 
-            public TransactionWrite(TransactionId tid, boolean write) {
-                this.tid = tid;
-                this.write = write;
-            }
+    /**
+     * Bound of the CompressedPageCache set up by the BufferPool(int)
+     * constructor, in bytes; 0 for none. Override with
+     * -Dsimpledb.BufferPool.compressedCacheBytes.
+     */
+    public static final long DEFAULT_COMPRESSED_CACHE_BYTES = 0;
 
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (o == null || getClass() != o.getClass()) return false;
+    /**
+     * With -Dsimpledb.BufferPool.hotPageFile=path, the BufferPool(int)
+     * constructor sets up a warm restart through that file; the hot pages
+     * are then also saved every simpledb.BufferPool.hotPageIntervalMs
+     * milliseconds, or only on LogFile.shutdown() if 0.
+     */
+    public static final long DEFAULT_HOT_PAGE_INTERVAL_MS = 0;
 
-                TransactionWrite that = (TransactionWrite) o;
+    /**
+     * Whether heap files lock tuples instead of pages. Override with
+     * -Dsimpledb.BufferPool.recordLocking=true.
+     */
+    public static final boolean DEFAULT_RECORD_LOCKING = false;
+
+    /**
+     * Number of page and tuple locks a transaction may hold on one table
+     * before they are escalated to a lock on the table; scans of heap files
+     * with at least this many pages lock the table from the start. 0 turns
+     * both off. Override with -Dsimpledb.BufferPool.lockEscalationThreshold.
+     */
+    public static final int DEFAULT_LOCK_ESCALATION_THRESHOLD = 1000;
 
-                if (write != that.write) return false;
-                return tid.equals(that.tid);
+    private final Partition[] partitions;
+    private volatile int numPages;
+    private final AtomicInteger resident = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong arenaHits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicInteger committedDirty = new AtomicInteger();
+    // bumped whenever the disk copy of a page may have changed; see prefetched()
+    private final AtomicLong diskEpoch = new AtomicLong();
+    private final TransactionId cleanerTid = new TransactionId();
+    private volatile PageCleaner cleaner = null;
+    private volatile PageArena arena = null;
+    private volatile CompressedPageCache compressedCache = null;
+    private volatile File hotPageFile = null;
+    private Timer hotPageTimer = null;
+    private volatile double scanRingThreshold = Double.parseDouble(
+            System.getProperty("simpledb.BufferPool.scanRingThreshold", String.valueOf(DEFAULT_SCAN_RING_THRESHOLD)));
+    private volatile int scanRingSize = Integer.getInteger("simpledb.BufferPool.scanRingSize", DEFAULT_SCAN_RING_SIZE);
+
+    private volatile boolean recordLocking = Boolean.parseBoolean(
+            System.getProperty("simpledb.BufferPool.recordLocking", String.valueOf(DEFAULT_RECORD_LOCKING)));
+
+    private volatile int escalationThreshold = Integer.getInteger("simpledb.BufferPool.lockEscalationThreshold",
+            DEFAULT_LOCK_ESCALATION_THRESHOLD);
+
+    // tables are locked under their id, pages under their PageId and tuples under their RecordId
+    private final LockManager lockManager = new LockManager();
+    private final UndoLog undoLog = new UndoLog();
+    private final VersionStore versions = new VersionStore();
+    // held shared by commits and exclusively to start a snapshot, so that
+    // snapshots never see half a commit
+    private final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    // orders the commits made while snapshots are running
+    private final Object commitOrder = new Object();
+    // per transaction and table: the number of page and tuple locks, and whether any is exclusive
+    private final Map<TransactionId, Map<Integer, int[]>> fineLocks = new ConcurrentHashMap<>();
+    // pages written under a table lock instead of a page lock, per transaction
+    private final Map<TransactionId, Set<PageId>> tableWritten = new ConcurrentHashMap<>();
+    // transactions declared read-only
+    private final Set<TransactionId> readOnly = ConcurrentHashMap.newKeySet();
+    // transactions whose commit was prepared by prepareCommit, before logging it
+    private final Set<TransactionId> prepared = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A partition owns the frames and the replacement state of the pages
+     * hashed to it. Only the count of resident pages is
+     * shared, so threads working on pages of different partitions do not
+     * contend. A partition whose pages are all dirty evicts from the others.
+     */
+    private class Partition {
+        private final Map<PageId, Page> pages = new ConcurrentHashMap<>();
+        // pages holding committed changes that are not on disk yet (NO FORCE)
+        private final Set<PageId> committed = ConcurrentHashMap.newKeySet();
+        // pages read by large scans or read ahead; each holds a frame but stays out of the policy
+        private final Map<PageId, Page> ringPages = new ConcurrentHashMap<>();
+        // pin counts, per page and per pinning transaction; guarded by the partition
+        private final Map<PageId, Integer> pinCounts = new HashMap<>();
+        private final Map<TransactionId, Map<PageId, Integer>> pins = new HashMap<>();
+        private final ReplacementPolicy policy;
+
+        Partition(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Put a freshly read page into the partition, evicting if the pool is
+         * full. If another thread admitted the same page meanwhile, its copy
+         * wins; a copy held by a scan ring moves to the partition. This holds
+         * even if no frame can be had: read-ahead may have taken the frame
+         * the reservation freed for the very page, which is pinned already.
+         */
+        Page admit(Page page) throws DbException {
+            PageId pid = page.getId();
+            if (!tryReserveFrame(this)) {
+                Page cached = adopt(pid);
+                if (cached == null) cached = pages.get(pid);
+                if (cached == null) throw new DbException("All pages are dirty");
+                return cached;
+            }
+            Page existing;
+            synchronized (this) {
+                dropSecondTierCopy(pid);
+                Page ringCopy = ringPages.remove(pid);
+                if (ringCopy != null) {
+                    // the page brings its frame along
+                    page = ringCopy;
+                    resident.decrementAndGet();
+                }
+                existing = pages.putIfAbsent(pid, page);
+                if (existing == null) {
+                    policy.admit(pid);
+                    return page;
+                }
             }
+            resident.decrementAndGet();
+            policy.access(pid);
+            return existing;
+        }
 
-            @Override
-            public int hashCode() {
-                int result = tid.hashCode();
-                result = 31 * result + (write ? 1 : 0);
-                return result;
+        /**
+         * Move a page held by a scan ring or read ahead to the partition, in
+         * the frame it already occupies.
+         *
+         * @return the page, or null if no ring holds it
+         */
+        synchronized Page adopt(PageId pid) {
+            Page page = ringPages.remove(pid);
+            if (page == null) return null;
+            Page existing = pages.putIfAbsent(pid, page);
+            if (existing == null) {
+                policy.admit(pid);
+                return page;
             }
+            resident.decrementAndGet();
+            policy.access(pid);
+            return existing;
         }
 
-        private final Map<TransactionId, SemaWrite> tid2sema = new ConcurrentHashMap<>();
-        private final Map<ReadWriteSemaphore, Set<TransactionWrite>> sema2tid = new ConcurrentHashMap<>();
+        /**
+         * Install a page modified by insertTuple or deleteTuple, replacing the
+         * cached version if there is one.
+         */
+        void install(Page page) throws DbException {
+            PageId pid = page.getId();
+            synchronized (this) {
+                dropSecondTierCopy(pid);
+                dropRingPage(pid);
+                if (pages.replace(pid, page) != null) {
+                    policy.access(pid);
+                    return;
+                }
+            }
+            reserveFrame(this);
+            synchronized (this) {
+                dropSecondTierCopy(pid);
+                dropRingPage(pid);
+                if (pages.put(pid, page) == null) {
+                    policy.admit(pid);
+                    return;
+                }
+            }
+            resident.decrementAndGet();
+            policy.access(pid);
+        }
 
-        private boolean check(TransactionId start, TransactionId cur) {
-            SemaWrite s = tid2sema.get(cur);
-            if (s == null) return false;
-            for (TransactionWrite t : sema2tid.getOrDefault(s.semaphore, new HashSet<>())) {
-                if (!s.write && !t.write) continue;
-                if (t.tid == cur) continue;
-                if (t.tid == start || check(start, t.tid)) return true;
+        /**
+         * Put a page read by a large scan into the scan's ring, unless the
+         * partition or another ring has it already, as for {@link #admit(Page)}.
+         *
+         * @return the page the scan should use
+         */
+        Page admitToRing(Page page, ScanRing ring) throws DbException {
+            PageId pid = page.getId();
+            PageId oldest = ring.recycle();
+            if ((oldest == null || !partitionOf(oldest).reclaimRingFrame(oldest)) && !tryReserveFrame(this)) {
+                Page cached = pages.get(pid);
+                if (cached == null) cached = ringPages.get(pid);
+                if (cached == null) throw new DbException("All pages are dirty");
+                return cached;
             }
-            return false;
+            Page existing;
+            synchronized (this) {
+                dropSecondTierCopy(pid);
+                existing = pages.get(pid);
+                if (existing == null) existing = ringPages.putIfAbsent(pid, page);
+                if (existing == null) {
+                    ring.add(pid);
+                    return page;
+                }
+            }
+            resident.decrementAndGet();
+            return existing;
         }
 
-        public synchronized boolean wait(TransactionId tid, ReadWriteSemaphore sema, boolean write) {
-            tid2sema.put(tid, new SemaWrite(sema, write));
-            if (check(tid, tid)) {
-                tid2sema.remove(tid);
-                return true;
-            } else return false;
+        /**
+         * Take back the frame of a page a ring is done with, unless somebody
+         * still has the page pinned.
+         */
+        synchronized boolean reclaimRingFrame(PageId pid) {
+            return !pinCounts.containsKey(pid) && ringPages.remove(pid) != null;
         }
 
-        public synchronized void acquire(TransactionId tid, ReadWriteSemaphore sema, boolean write) {
-            tid2sema.remove(tid);
-            sema2tid.computeIfAbsent(sema, s -> new HashSet<>()).add(new TransactionWrite(tid, write));
+        synchronized void pin(TransactionId tid, PageId pid) {
+            pinCounts.merge(pid, 1, Integer::sum);
+            pins.computeIfAbsent(tid, t -> new HashMap<>()).merge(pid, 1, Integer::sum);
         }
 
-        public synchronized void release(TransactionId tid, ReadWriteSemaphore sema, boolean write) {
-            Set<TransactionWrite> set = sema2tid.get(sema);
-            set.remove(new TransactionWrite(tid, write));
-            if (set.isEmpty()) sema2tid.remove(sema);
+        synchronized void unpin(TransactionId tid, PageId pid) {
+            Map<PageId, Integer> mine = pins.get(tid);
+            if (mine == null || !mine.containsKey(pid)) return;
+            mine.computeIfPresent(pid, (k, n) -> n > 1 ? n - 1 : null);
+            if (mine.isEmpty()) pins.remove(tid);
+            pinCounts.computeIfPresent(pid, (k, c) -> c > 1 ? c - 1 : null);
         }
-    }
 
-    private class ReadWriteSemaphore {
-        private final Semaphore read = new Semaphore(1);
-        private final Semaphore write = new Semaphore(1);
-        private final Semaphore upgrade = new Semaphore(1);
-        private int readCount = 0;
+        synchronized void unpinAll(TransactionId tid) {
+            Map<PageId, Integer> mine = pins.remove(tid);
+            if (mine == null) return;
+            for (Map.Entry<PageId, Integer> entry : mine.entrySet()) {
+                int n = entry.getValue();
+                pinCounts.computeIfPresent(entry.getKey(), (k, c) -> c > n ? c - n : null);
+            }
+        }
 
-        public void lockRead(TransactionId tid) throws TransactionAbortedException {
-            if (graph.wait(tid, this, false)) throw new TransactionAbortedException();
-            read.acquireUninterruptibly();
-            readCount++;
-            if (readCount == 1) write.acquireUninterruptibly();
-            read.release();
-            graph.acquire(tid, this, false);
+        synchronized int pinCount(PageId pid) {
+            return pinCounts.getOrDefault(pid, 0);
         }
 
-        public void unlockRead(TransactionId tid) {
-            read.acquireUninterruptibly();
-            readCount--;
-            if (readCount == 0) write.release();
-            read.release();
-            graph.release(tid, this, false);
+        /**
+         * Keep a page read ahead of a scan in a free frame, unless the page
+         * is cached already or may have been written since it was read. The
+         * frame is taken under the partition, so a thread evicting from it
+         * finds the page as soon as its frame is counted.
+         */
+        synchronized boolean admitPrefetched(Page page, long epoch) {
+            PageId pid = page.getId();
+            if (diskEpoch.get() != epoch || pages.containsKey(pid) || ringPages.containsKey(pid)
+                    || !tryTakeFreeFrame())
+                return false;
+            dropSecondTierCopy(pid);
+            ringPages.put(pid, page);
+            return true;
         }
 
-        public void upgrade(TransactionId tid) throws TransactionAbortedException {
-            if (graph.wait(tid, this, true)) throw new TransactionAbortedException();
-            read.acquireUninterruptibly();
-            readCount--;
-            // multiple upgrade results in deadlock in graph, so no deadlock may happen here
-            upgrade.acquireUninterruptibly();
-            if (readCount == 0) write.release();
-            read.release();
-            write.acquireUninterruptibly();
-            upgrade.release();
-            graph.release(tid, this, false);
-            graph.acquire(tid, this, true);
+        /**
+         * Bring back a page evicted to the arena or the compressed cache.
+         *
+         * @return the page, or null if neither has it
+         */
+        Page fromSecondTier(PageId pid) {
+            byte[] data = null;
+            PageArena a = arena;
+            if (a != null && a.getPageSize() == getPageSize()) {
+                data = a.take(pid);
+                if (data != null) arenaHits.incrementAndGet();
+            }
+            CompressedPageCache c = compressedCache;
+            if (data == null && c != null) data = c.take(pid);
+            if (data == null || data.length != getPageSize()) return null;
+            try {
+                return Database.getCatalog().getDatabaseFile(pid.getTableId()).createPage(pid, data);
+            } catch (IOException e) {
+                return null;
+            }
         }
 
-        public void lockWrite(TransactionId tid) throws TransactionAbortedException {
-            if (graph.wait(tid, this, true)) throw new TransactionAbortedException();
-            write.acquireUninterruptibly();
-            graph.acquire(tid, this, true);
+        // a page entering the pool must not leave an older copy in the second tier
+        void dropSecondTierCopy(PageId pid) {
+            PageArena a = arena;
+            if (a != null) a.remove(pid);
+            CompressedPageCache c = compressedCache;
+            if (c != null) c.remove(pid);
         }
 
-        public void unlockWrite(TransactionId tid) {
-            write.release();
-            graph.release(tid, this, true);
+        void dropRingPage(PageId pid) {
+            if (ringPages.remove(pid) != null) resident.decrementAndGet();
         }
-    }
 
-    private static class LockInfo {
-        private final TransactionId tid;
-        private final ReadWriteSemaphore lock;
-        private Boolean write;
+        synchronized void discard(PageId pid) {
+            diskEpoch.incrementAndGet();
+            dropSecondTierCopy(pid);
+            dropRingPage(pid);
+            forget(pid);
+            if (pages.remove(pid) != null) {
+                policy.remove(pid);
+                resident.decrementAndGet();
+            }
+        }
 
-        public LockInfo(TransactionId tid, ReadWriteSemaphore lock) {
-            this.tid = tid;
-            this.lock = lock;
-            this.write = null;
+        void forget(PageId pid) {
+            if (committed.remove(pid)) committedDirty.decrementAndGet();
         }
 
-        public void update(boolean write) throws TransactionAbortedException {
-            if (this.write == null && !write) {
-                lock.lockRead(tid);
-                this.write = false;
-            } else if (this.write == null && write) {
-                lock.lockWrite(tid);
-                this.write = true;
-            } else if (!this.write && write) {
-                lock.upgrade(tid);
-                this.write = true;
+        /**
+         * Discards a page from the partition. Pinned pages stay. Pages of
+         * scan rings go first, then pages chosen by the replacement policy,
+         * which move to the second tier if there is one. Only clean pages are
+         * evicted (NO STEAL), so nothing needs to be written back; if there
+         * are none, a page holding committed changes is written back and
+         * evicted instead.
+         *
+         * @return false if no page of this partition can be evicted
+         */
+        synchronized boolean evict() {
+            for (PageId pid : ringPages.keySet())
+                if (!pinCounts.containsKey(pid) && ringPages.remove(pid) != null) {
+                    resident.decrementAndGet();
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            PageId victim = policy.evict(pid -> {
+                Page page = pages.get(pid);
+                return page == null || page.isDirty() == null && !pinCounts.containsKey(pid);
+            });
+            if (victim == null) {
+                for (PageId pid : committed)
+                    if (!pinCounts.containsKey(pid) && writeBack(this, pid)) {
+                        victim = pid;
+                        policy.remove(pid);
+                        break;
+                    }
+                if (victim == null) return false;
+            }
+            Page page = pages.remove(victim);
+            if (page != null) {
+                resident.decrementAndGet();
+                evictions.incrementAndGet();
+                if (page.isDirty() == null) toSecondTier(victim, page);
             }
+            return true;
         }
+    }
+
+    // clean evicted pages go to the arena if there is one, else to the compressed cache
+    private void toSecondTier(PageId pid, Page page) {
+        PageArena a = arena;
+        CompressedPageCache c = compressedCache;
+        if (a != null) a.put(pid, page.getPageData());
+        else if (c != null) c.put(pid, page.getPageData());
+    }
 
-        public boolean isWrite() {
-            return write != null && write;
+    /**
+     * Reserve a frame for a page of the given partition, evicting from it, or
+     * from the other partitions if all of its own pages are dirty.
+     */
+    private void reserveFrame(Partition home) throws DbException {
+        if (!tryReserveFrame(home)) throw new DbException("All pages are dirty");
+    }
+
+    private boolean tryReserveFrame(Partition home) {
+        // after a shrink, the pool may hold more pages than it may; a
+        // reservation made meanwhile evicts two pages, or one if no other can
+        // go, so the excess goes gradually. Otherwise a frame is only taken
+        // below the size of the pool, whatever other threads take meanwhile.
+        boolean shrinking = resident.get() > numPages;
+        int evicted = 0;
+        while (true) {
+            int n = resident.get();
+            if (n < numPages || shrinking && evicted >= 2) {
+                if (resident.compareAndSet(n, n + 1)) return true;
+            } else if (evictAny(home)) {
+                evicted++;
+            } else if (shrinking && evicted > 0) {
+                if (resident.compareAndSet(n, n + 1)) return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Take a free frame, if the pool holds fewer pages than it may, without
+     * evicting any page.
+     */
+    private boolean tryTakeFreeFrame() {
+        while (true) {
+            int n = resident.get();
+            if (n >= numPages) return false;
+            if (resident.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    /**
+     * Evict a page of the given partition, or of another one if all of its
+     * own pages are dirty or pinned.
+     *
+     * @return false if no page can be evicted
+     */
+    private boolean evictAny(Partition home) {
+        if (home.evict()) return true;
+        for (Partition part : partitions)
+            if (part != home && part.evict()) return true;
+        return false;
+    }
+
+    /**
+     * Change the number of pages this pool may hold, keeping the cached
+     * pages, locks and pins. Growing takes effect at once. Shrinking evicts
+     * pages one at a time, as chosen by the replacement policy, until the
+     * pool fits; pages that cannot be evicted yet (dirty or pinned) are
+     * evicted later, two for each page read in, so the pool may hold more
+     * pages than numPages for a while.
+     *
+     * @param numPages the new maximum number of pages
+     * @throws IllegalArgumentException if numPages is not positive
+     */
+    public void resize(int numPages) {
+        if (numPages < 1) throw new IllegalArgumentException("a buffer pool needs at least one page");
+        this.numPages = numPages;
+        for (int i = 0; i < partitions.length; i++)
+            partitions[i].policy.setCapacity(numPages / partitions.length + (i < numPages % partitions.length ? 1 : 0));
+        int round = 0;
+        while (resident.get() > this.numPages && evictAny(partitions[round++ % partitions.length])) {
+            // evict one page at a time, so that transactions proceed meanwhile
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, Integer.getInteger("simpledb.BufferPool.partitions", DEFAULT_PARTITIONS));
+        if (Boolean.getBoolean("simpledb.BufferPool.cleaner")) {
+            int low = Integer.getInteger("simpledb.BufferPool.cleanerLowWatermark", DEFAULT_CLEANER_LOW_WATERMARK);
+            int high = Integer.getInteger("simpledb.BufferPool.cleanerHighWatermark", DEFAULT_CLEANER_HIGH_WATERMARK);
+            startPageCleaner(Integer.getInteger("simpledb.BufferPool.cleanerPagesPerSecond", DEFAULT_CLEANER_PAGES_PER_SECOND),
+                    numPages * low / 100, numPages * high / 100,
+                    Long.getLong("simpledb.BufferPool.cleanerIntervalMs", DEFAULT_CLEANER_INTERVAL_MS));
+        }
+        int arenaPages = Integer.getInteger("simpledb.BufferPool.arenaPages", DEFAULT_ARENA_PAGES);
+        if (arenaPages > 0) setArena(new PageArena(arenaPages, getPageSize()));
+        long compressedBytes = Long.getLong("simpledb.BufferPool.compressedCacheBytes", DEFAULT_COMPRESSED_CACHE_BYTES);
+        if (compressedBytes > 0) setCompressedCache(new CompressedPageCache(compressedBytes));
+        String hotPages = System.getProperty("simpledb.BufferPool.hotPageFile");
+        if (hotPages != null)
+            setHotPageFile(new File(hotPages),
+                    Long.getLong("simpledb.BufferPool.hotPageIntervalMs", DEFAULT_HOT_PAGE_INTERVAL_MS));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split evenly
+     * over the given number of independent partitions. Each partition uses
+     * the replacement policy named by the system property
+     * simpledb.BufferPool.policy.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions; clamped to [1, numPages]
+     */
+    public BufferPool(int numPages, int numPartitions) {
+        this.numPages = numPages;
+        String policy = System.getProperty("simpledb.BufferPool.policy", DEFAULT_POLICY);
+        int n = Math.max(1, Math.min(numPartitions, numPages));
+        partitions = new Partition[n];
+        for (int i = 0; i < n; i++) {
+            int share = numPages / n + (i < numPages % n ? 1 : 0);
+            partitions[i] = new Partition(createPolicy(policy, share));
         }
+    }
+
+    /**
+     * Creates a single-partition BufferPool that caches up to numPages pages
+     * and evicts them according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the policy choosing pages to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this.numPages = numPages;
+        partitions = new Partition[]{new Partition(policy)};
+    }
 
-        public void unlock() {
-            if (write != null) {
-                if (write) lock.unlockWrite(tid);
-                else lock.unlockRead(tid);
-                write = null;
+    /**
+     * Creates a replacement policy by name.
+     *
+     * @param name     one of "clock", "2q", "lru-k" (K from the system property
+     *                 simpledb.BufferPool.lruK, default 2) or "lru-N" for LRU-N
+     * @param numPages the number of frames the policy will manage
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static ReplacementPolicy createPolicy(String name, int numPages) {
+        String lower = name.trim().toLowerCase();
+        if (lower.equals("clock")) return new ClockPolicy();
+        if (lower.equals("2q")) return new TwoQueuePolicy(numPages);
+        if (lower.equals("lru-k")) return new LruKPolicy(Integer.getInteger("simpledb.BufferPool.lruK", 2));
+        if (lower.startsWith("lru-")) {
+            try {
+                return new LruKPolicy(Integer.parseInt(lower.substring(4)));
+            } catch (NumberFormatException e) {
+                // fall through
             }
         }
+        throw new IllegalArgumentException("unknown replacement policy " + name);
     }
 
-    private static class TransactionPagePair {
-        private final TransactionId tid;
-        private final PageId pid;
+    /**
+     * Switch this pool to NO FORCE: from now on commits log their pages
+     * instead of writing them, and a background thread writes them back.
+     *
+     * @param pagesPerSecond maximum number of pages the cleaner writes per second
+     * @param lowWatermark   number of committed dirty pages the cleaner stops at
+     * @param highWatermark  number of committed dirty pages that wakes the
+     *                       cleaner early
+     * @param intervalMillis time between two rounds of the cleaner
+     * @throws IllegalStateException if a cleaner is already running
+     */
+    public synchronized void startPageCleaner(int pagesPerSecond, int lowWatermark, int highWatermark,
+                                              long intervalMillis) {
+        if (cleaner != null) throw new IllegalStateException("page cleaner already running");
+        cleaner = new PageCleaner(this, pagesPerSecond, lowWatermark, Math.max(highWatermark, 1), intervalMillis);
+        cleaner.start();
+    }
 
-        public TransactionId getTid() {
-            return tid;
+    /**
+     * Stop the page cleaner, if any, and write back the committed dirty pages
+     * it left behind, so that a new pool finds them on disk.
+     */
+    public synchronized void shutdown() {
+        if (hotPageTimer != null) {
+            hotPageTimer.cancel();
+            hotPageTimer = null;
+        }
+        if (cleaner != null) {
+            cleaner.shutdown();
+            cleaner = null;
+            cleanPages(Integer.MAX_VALUE);
         }
+    }
 
-        public PageId getPid() {
-            return pid;
+    /**
+     * @return the number of pages holding committed changes that have not
+     * been written to disk yet; always 0 without a page cleaner
+     */
+    public int getCommittedDirtyCount() {
+        return committedDirty.get();
+    }
+
+    /**
+     * Write back up to max committed dirty pages, skipping the ones a
+     * transaction holds a write lock on.
+     *
+     * @return the number of pages written
+     */
+    int cleanPages(int max) {
+        int written = 0;
+        for (Partition part : partitions)
+            for (PageId pid : part.committed) {
+                if (written >= max) return written;
+                if (writeBack(part, pid)) written++;
+            }
+        return written;
+    }
+
+    /**
+     * Write a page holding committed changes back to disk, unless a
+     * transaction is modifying it right now.
+     *
+     * @return true if the page is clean afterwards
+     */
+    private boolean writeBack(Partition part, PageId pid) {
+        Integer table = pid.getTableId();
+        if (!lockManager.tryAcquire(cleanerTid, table, LockMode.INTENTION_SHARED)) return false;
+        if (!lockManager.tryAcquire(cleanerTid, pid, LockMode.SHARED)) {
+            lockManager.release(cleanerTid, table);
+            return false;
         }
+        try {
+            Page page = part.pages.get(pid);
+            if (page != null && cleanerTid.equals(page.isDirty())) writeClean(page);
+            part.forget(pid);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lockManager.release(cleanerTid, pid);
+            lockManager.release(cleanerTid, table);
+        }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+    /**
+     * Set the file the hot pages of this pool are saved to and reloaded from
+     * for a warm restart.
+     *
+     * @param file           the file, or null for no warm restart
+     * @param intervalMillis time between two saves in the background; 0 to
+     *                       save only when {@link #saveHotPages()} is called
+     */
+    public synchronized void setHotPageFile(File file, long intervalMillis) {
+        if (hotPageTimer != null) {
+            hotPageTimer.cancel();
+            hotPageTimer = null;
+        }
+        hotPageFile = file;
+        if (file != null && intervalMillis > 0) {
+            hotPageTimer = new Timer("simpledb-hot-pages", true);
+            hotPageTimer.schedule(new TimerTask() {
+                public void run() {
+                    saveHotPages();
+                }
+            }, intervalMillis, intervalMillis);
+        }
+    }
 
-            TransactionPagePair that = (TransactionPagePair) o;
+    /**
+     * @return the ids of the pages cached by this pool, hottest first as
+     * ranked by the replacement policy; partitions are interleaved. Pages of
+     * scan rings and pages read ahead are not included.
+     */
+    public List<PageId> getHotPages() {
+        List<Iterator<PageId>> ranked = new ArrayList<>();
+        for (Partition part : partitions) ranked.add(part.policy.hottestFirst().iterator());
+        List<PageId> hot = new ArrayList<>();
+        for (boolean more = true; more; ) {
+            more = false;
+            for (Iterator<PageId> it : ranked)
+                if (it.hasNext()) {
+                    hot.add(it.next());
+                    more = true;
+                }
+        }
+        return hot;
+    }
 
-            if (!tid.equals(that.tid)) return false;
-            return pid.equals(that.pid);
+    /**
+     * Save the ids of the hot pages to the hot page file, if one is set.
+     * Errors are logged and otherwise ignored.
+     *
+     * @see WarmRestart
+     */
+    public void saveHotPages() {
+        File file = hotPageFile;
+        if (file == null) return;
+        try {
+            WarmRestart.save(getHotPages(), file);
+        } catch (IOException e) {
+            Debug.log(1, "BufferPool: cannot save hot pages to %s: %s", file, e);
         }
+    }
 
-        @Override
-        public int hashCode() {
-            int result = tid.hashCode();
-            result = 31 * result + pid.hashCode();
-            return result;
+    /**
+     * Start reading the pages listed in the hot page file back into this pool
+     * in the background. Call once the catalog is loaded.
+     *
+     * @return the thread reading the pages, or null if there is no hot page
+     * file or it cannot be read
+     * @see WarmRestart#reload(BufferPool, List)
+     */
+    public Thread loadHotPages() {
+        File file = hotPageFile;
+        if (file == null || !file.exists()) return null;
+        try {
+            return WarmRestart.reload(this, WarmRestart.load(file));
+        } catch (IOException e) {
+            Debug.log(1, "BufferPool: cannot load hot pages from %s: %s", file, e);
+            return null;
         }
+    }
+
+    /**
+     * Keep clean pages evicted from this pool in the given arena, or stop
+     * doing so. Pages already in a previous arena are forgotten.
+     *
+     * @param arena the arena, or null for none
+     */
+    public void setArena(PageArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Keep clean pages evicted from this pool compressed in the given cache,
+     * or stop doing so. Evicted pages go to the arena instead if there is
+     * one.
+     *
+     * @param cache the cache, or null for none
+     */
+    public void setCompressedCache(CompressedPageCache cache) {
+        this.compressedCache = cache;
+    }
+
+    /**
+     * @return the compressed cache evicted pages go to, or null
+     */
+    public CompressedPageCache getCompressedCache() {
+        return compressedCache;
+    }
+
+    /**
+     * @return the arena evicted pages go to, or null
+     */
+    public PageArena getArena() {
+        return arena;
+    }
 
-        public TransactionPagePair(TransactionId tid, PageId pid) {
-            this.tid = tid;
-            this.pid = pid;
+    /**
+     * Take a snapshot of the counters and the occupancy of this pool. The
+     * occupancy is computed by walking the resident pages, pages of scan
+     * rings and pages read ahead included.
+     */
+    public BufferPoolStats getStats() {
+        int residentPages = 0, dirty = 0, pinned = 0;
+        Map<Integer, Integer> byTable = new HashMap<>();
+        Map<String, Integer> byCategory = new HashMap<>();
+        for (Partition part : partitions) {
+            List<Page> all = new ArrayList<>(part.pages.values());
+            all.addAll(part.ringPages.values());
+            for (Page page : all) {
+                residentPages++;
+                if (page.isDirty() != null) dirty++;
+                byTable.merge(page.getId().getTableId(), 1, Integer::sum);
+                byCategory.merge(BufferPoolStats.categoryOf(page.getId()), 1, Integer::sum);
+            }
+            synchronized (part) {
+                pinned += part.pinCounts.size();
+            }
         }
+        return new BufferPoolStats(numPages, residentPages, dirty, pinned, hits.get(), misses.get(),
+                evictions.get(), flushes.get(), flushNanos.get(), byTable, byCategory);
     }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * @return the number of misses served from the arena instead of disk
+     */
+    public long getArenaHitCount() {
+        return arenaHits.get();
+    }
+
+    /**
+     * Set when scans read through a ScanRing instead of the main pool.
      *
-     * @param numPages maximum number of pages in this buffer pool.
+     * @param threshold scans of files with more pages than this fraction of
+     *                  the pool use a ring
+     * @param size      number of pages in a ring
      */
-    public BufferPool(int numPages) {
-        pool = new ConcurrentHashMap<>();
-        lockMap = new ConcurrentHashMap<>();
-        locks = new ConcurrentHashMap<>();
-        this.numPages = numPages;
+    public void setScanRing(double threshold, int size) {
+        scanRingThreshold = threshold;
+        scanRingSize = size;
+    }
+
+    /**
+     * Get a scan ring for a sequential scan over a file of the given size.
+     *
+     * @param filePages number of pages the scan will read
+     * @return a fresh ring, or null if the scan should use the main pool
+     */
+    public ScanRing getScanRing(int filePages) {
+        if (filePages <= numPages * scanRingThreshold) return null;
+        return new ScanRing(scanRingSize);
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the name of the replacement policy used by the partitions
+     */
+    public String getPolicyName() {
+        return partitions[0].policy.getName();
+    }
+
+    /**
+     * @return the number of partitions of this buffer pool
+     */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    private Partition partitionOf(PageId pid) {
+        if (partitions.length == 1) return partitions[0];
+        int h = pid.hashCode();
+        return partitions[Math.floorMod(h ^ (h >>> 16), partitions.length)];
+    }
+
+    /**
+     * @return the number of getPage calls served from the pool so far
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of getPage calls that had to read the page from disk
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of getPage calls served by the pool under the
+     * current replacement policy, or 0 if no page has been requested yet
+     */
+    public double getHitRatio() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
     }
 
     public static int getPageSize() {
@@ -276,18 +972,556 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        ReadWriteSemaphore lock = lockMap.computeIfAbsent(pid, p -> new ReadWriteSemaphore());
-        LockInfo info = locks.computeIfAbsent(new TransactionPagePair(tid, pid), p -> new LockInfo(tid, lock));
-        info.update(perm == Permissions.READ_WRITE);
-        Page ret = pool.get(pid);
-        if (ret == null) {
-            if (pool.size() == numPages) evictPage();
-            ret = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            pool.put(pid, ret);
+        Long snapshot = versions.getSnapshot(tid);
+        if (snapshot != null) return snapshotPage(tid, pid, perm, snapshot);
+        if (perm == Permissions.READ_WRITE) checkNotReadOnly(tid);
+        lock(tid, pid, perm == Permissions.READ_WRITE);
+        return fetch(partitionOf(pid), pid);
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but only if that needs no wait for a lock; safe to call while holding
+     * a latch, i.e. a page locked only for a moment.
+     *
+     * @return the page, or null if the transaction would have to wait
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        Long snapshot = versions.getSnapshot(tid);
+        if (snapshot != null) return snapshotPage(tid, pid, perm, snapshot);
+        if (perm == Permissions.READ_WRITE) checkNotReadOnly(tid);
+        if (!tryLock(tid, pid, perm == Permissions.READ_WRITE)) return null;
+        return fetch(partitionOf(pid), pid);
+    }
+
+    private Page fetch(Partition part, PageId pid) throws DbException {
+        Page ret = part.pages.get(pid);
+        if (ret != null) {
+            hits.incrementAndGet();
+            part.policy.access(pid);
+            return ret;
+        }
+        ret = part.adopt(pid);
+        if (ret != null) {
+            hits.incrementAndGet();
+            return ret;
+        }
+        misses.incrementAndGet();
+        ret = part.fromSecondTier(pid);
+        if (ret == null) ret = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return part.admit(ret);
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * on behalf of a large sequential scan. Read-only pages that are not in
+     * the pool are read into the given ring instead of the pool.
+     *
+     * @param ring the ring of the scan, or null to use the main pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        if (ring == null || perm != Permissions.READ_ONLY) return getPage(tid, pid, perm);
+        Long snapshot = versions.getSnapshot(tid);
+        if (snapshot != null) return snapshotPage(tid, pid, perm, snapshot);
+        lock(tid, pid, false);
+        return fetch(partitionOf(pid), pid, ring);
+    }
+
+    private Page fetch(Partition part, PageId pid, ScanRing ring) throws DbException {
+        if (ring == null) return fetch(part, pid);
+        Page ret = part.pages.get(pid);
+        if (ret == null) ret = part.ringPages.get(pid);
+        if (ret != null) {
+            hits.incrementAndGet();
+            part.policy.access(pid);
+            return ret;
+        }
+        misses.incrementAndGet();
+        ret = part.fromSecondTier(pid);
+        if (ret == null) ret = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return part.admitToRing(ret, ring);
+    }
+
+    /**
+     * Read a page as of a snapshot: the version retained for the snapshot if
+     * the page changed since it started, else the page as last committed.
+     * The page returned is a private copy.
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid, Permissions perm, long snapshot)
+            throws DbException {
+        if (perm != Permissions.READ_ONLY) checkWritable(tid);
+        // read the current version before looking for an older one: a commit
+        // retains the old version before it changes the current one
+        Page current = committedCopy(fetchUnlocked(partitionOf(pid), pid));
+        Page old = versions.find(pid, snapshot);
+        return old != null ? old : current;
+    }
+
+    /**
+     * Retrieve a page for a reader holding no lock on it. A page read from
+     * disk is kept like a page read ahead (see {@link #prefetched(Page, long)}),
+     * only if no page was written or discarded meanwhile: without a lock, a
+     * writer may have committed a newer version, and written it back, since
+     * the read.
+     */
+    private Page fetchUnlocked(Partition part, PageId pid) throws DbException {
+        Page ret = part.pages.get(pid);
+        if (ret == null) ret = part.ringPages.get(pid);
+        if (ret != null) {
+            hits.incrementAndGet();
+            return ret;
         }
+        misses.incrementAndGet();
+        long epoch = diskEpoch.get();
+        ret = part.fromSecondTier(pid);
+        if (ret == null) ret = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        part.admitPrefetched(ret, epoch);
         return ret;
     }
 
+    /**
+     * @return a private copy of the page as last committed: its before image,
+     * or, if running transactions changed tuples on it under record locking,
+     * the page with their changes undone
+     */
+    private Page committedCopy(Page page) throws DbException {
+        synchronized (page) {
+            if (undoLog.getWriter(page.getId()) != null) return undoLog.committedImage((HeapPage) page, null);
+            return page.getBeforeImage();
+        }
+    }
+
+    /**
+     * Make the transaction read from a snapshot of the database as committed
+     * now: its page requests take no locks and see neither changes committed
+     * later nor uncommitted ones, and it cannot write. Call before the
+     * transaction reads anything; waits for commits in progress to finish.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        commitLock.writeLock().lock();
+        try {
+            versions.begin(tid);
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the transaction reads from a snapshot
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.getSnapshot(tid) != null;
+    }
+
+    /**
+     * Declare the transaction read-only: it locks pages in shared mode as
+     * usual, but any attempt to write fails with a DbException, and its
+     * completion skips the flush and rollback work and only releases its
+     * pins and locks. Call before the transaction reads anything.
+     */
+    public void beginReadOnly(TransactionId tid) {
+        readOnly.add(tid);
+    }
+
+    /**
+     * @return true if the transaction cannot write: it is declared
+     * read-only or reads from a snapshot
+     */
+    public boolean isReadOnly(TransactionId tid) {
+        return declaredReadOnly(tid) || isSnapshot(tid);
+    }
+
+    private boolean declaredReadOnly(TransactionId tid) {
+        return !readOnly.isEmpty() && readOnly.contains(tid);
+    }
+
+    /**
+     * @return the number of old page versions kept for running snapshots
+     */
+    public int getVersionCount() {
+        return versions.getVersionCount();
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage(TransactionId, PageId, Permissions)}
+     * and pin it: the page stays in the pool until every pin on it is
+     * released with {@link #unpinPage(TransactionId, PageId)}, or the
+     * transaction completes. Pins nest.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage(TransactionId, PageId, Permissions, ScanRing)}
+     * and pin it.
+     *
+     * @see #pinPage(TransactionId, PageId, Permissions)
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        Partition part = partitionOf(pid);
+        // pin first, so that the page cannot go between being fetched and pinned
+        part.pin(tid, pid);
+        try {
+            return getPage(tid, pid, perm, ring);
+        } catch (TransactionAbortedException | DbException | RuntimeException e) {
+            part.unpin(tid, pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieve and pin a page without locking it, for callers that lock the
+     * tuples of the page instead (see {@link #setRecordLocking(boolean)}).
+     * They must hold the latch of the page, i.e. its monitor, while reading
+     * or changing it, and must not wait for a lock while holding the latch.
+     *
+     * @param ring the ring of a large scan, or null to use the main pool
+     * @see #pinPage(TransactionId, PageId, Permissions)
+     */
+    public Page pinPageUnlocked(TransactionId tid, PageId pid, ScanRing ring) throws DbException {
+        Partition part = partitionOf(pid);
+        part.pin(tid, pid);
+        try {
+            return fetch(part, pid, ring);
+        } catch (DbException | RuntimeException e) {
+            part.unpin(tid, pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Release one pin of the transaction on the page; does nothing if it has
+     * none (e.g. because the transaction has completed since).
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        partitionOf(pid).unpin(tid, pid);
+    }
+
+    /**
+     * @return the number of pins on the page, by all transactions
+     */
+    public int getPinCount(PageId pid) {
+        return partitionOf(pid).pinCount(pid);
+    }
+
+    private void lock(TransactionId tid, PageId pid, boolean write)
+            throws TransactionAbortedException {
+        LockMode mode = write ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        // a page the transaction has locked already, as on every rescan of
+        // the inner relation of a join, needs a lookup in its own locks only
+        if (lockManager.holds(tid, pid, mode)) return;
+        Integer table = pid.getTableId();
+        if (tableCovers(tid, table, mode)) {
+            if (write) tableWritten.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+            return;
+        }
+        lockManager.acquire(tid, table, mode.intention());
+        boolean fresh = lockManager.getLockMode(tid, pid) == null;
+        lockManager.acquire(tid, pid, mode);
+        if (countFineLock(tid, table, fresh, write)) escalate(tid, table);
+    }
+
+    // escalation needs a wait for the table lock, so it is left to the next lock()
+    private boolean tryLock(TransactionId tid, PageId pid, boolean write) {
+        LockMode mode = write ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        if (lockManager.holds(tid, pid, mode)) return true;
+        Integer table = pid.getTableId();
+        if (tableCovers(tid, table, mode)) {
+            if (write) tableWritten.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+            return true;
+        }
+        boolean tableFresh = lockManager.getLockMode(tid, table) == null;
+        if (!lockManager.tryAcquire(tid, table, mode.intention())) return false;
+        boolean fresh = lockManager.getLockMode(tid, pid) == null;
+        if (!lockManager.tryAcquire(tid, pid, mode)) {
+            // a caller giving up must not keep an intention lock taken for nothing
+            if (tableFresh) lockManager.release(tid, table);
+            return false;
+        }
+        countFineLock(tid, table, fresh, write);
+        return true;
+    }
+
+    private boolean tableCovers(TransactionId tid, Integer table, LockMode mode) {
+        LockMode held = lockManager.getLockMode(tid, table);
+        return held != null && held.covers(mode);
+    }
+
+    /**
+     * Count a page or tuple lock of a transaction on a table.
+     *
+     * @param fresh true if the transaction held no lock on the page or tuple
+     * @return true if the locks on the table are to be escalated
+     */
+    private boolean countFineLock(TransactionId tid, Integer table, boolean fresh, boolean exclusive) {
+        int[] count = fineLocks.computeIfAbsent(tid, t -> new ConcurrentHashMap<>())
+                .computeIfAbsent(table, t -> new int[2]);
+        synchronized (count) {
+            if (fresh) count[0]++;
+            if (exclusive) count[1] = 1;
+            int threshold = escalationThreshold;
+            return threshold > 0 && count[0] >= threshold;
+        }
+    }
+
+    /**
+     * Replace the page and tuple locks of a transaction on a table by a lock
+     * on the table: exclusive if any of them is (or, for pages, an intention
+     * of) an exclusive lock, shared otherwise. The pages it held exclusive
+     * locks on are remembered, as they may be dirty.
+     */
+    private void escalate(TransactionId tid, Integer table) throws TransactionAbortedException {
+        lockManager.acquire(tid, table, escalatedMode(tid, table));
+        releaseFineLocks(tid, table);
+    }
+
+    // like escalate, but gives up if the table lock needs a wait
+    private void tryEscalate(TransactionId tid, Integer table) {
+        if (lockManager.tryAcquire(tid, table, escalatedMode(tid, table))) releaseFineLocks(tid, table);
+    }
+
+    private LockMode escalatedMode(TransactionId tid, Integer table) {
+        int[] count = fineLocks.get(tid).get(table);
+        synchronized (count) {
+            return count[1] != 0 ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        }
+    }
+
+    private void releaseFineLocks(TransactionId tid, Integer table) {
+        for (Map.Entry<Object, LockMode> entry : lockManager.getLocks(tid).entrySet()) {
+            Object resource = entry.getKey();
+            if (resource instanceof IndexKey) {
+                if (((IndexKey) resource).getTableId() == table) lockManager.release(tid, resource);
+                continue;
+            }
+            PageId pid = resource instanceof PageId ? (PageId) resource
+                    : resource instanceof RecordId ? ((RecordId) resource).getPageId() : null;
+            if (pid == null || pid.getTableId() != table) continue;
+            if (resource instanceof PageId && entry.getValue() == LockMode.EXCLUSIVE)
+                tableWritten.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(pid);
+            lockManager.release(tid, resource);
+        }
+        fineLocks.get(tid).remove(table);
+    }
+
+    /**
+     * Lock a whole table, for as long as the transaction runs; page and
+     * tuple locks the table lock covers are not taken any more. May block.
+     *
+     * @param mode the mode to lock the table in; SHARED for a large scan
+     * @throws DbException if the mode is not SHARED or INTENTION_SHARED and
+     *                     the transaction is read-only
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+            throws DbException, TransactionAbortedException {
+        checkLockable(tid, mode);
+        if (isSnapshot(tid)) return;
+        lockManager.acquire(tid, tableId, mode);
+    }
+
+    /**
+     * Set the number of page and tuple locks a transaction may hold on one
+     * table before they are escalated; 0 for no escalation.
+     */
+    public void setLockEscalationThreshold(int threshold) {
+        escalationThreshold = threshold;
+    }
+
+    public int getLockEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Lock a tuple of a heap file, for as long as the transaction runs.
+     * May block.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, LockMode mode)
+            throws DbException, TransactionAbortedException {
+        if (lockRecordPage(tid, rid.getPageId(), mode)) return;
+        boolean fresh = lockManager.getLockMode(tid, rid) == null;
+        lockManager.acquire(tid, rid, mode);
+        Integer table = rid.getPageId().getTableId();
+        if (countFineLock(tid, table, fresh, mode == LockMode.EXCLUSIVE)) escalate(tid, table);
+    }
+
+    /**
+     * Lock the table and the page of tuples about to be locked in the given
+     * mode in the matching intention mode. May block.
+     *
+     * @return true if a lock on the table or the page covers such tuple
+     * locks already, so that they need not be taken
+     */
+    public boolean lockRecordPage(TransactionId tid, PageId pid, LockMode mode)
+            throws DbException, TransactionAbortedException {
+        checkLockable(tid, mode);
+        Integer table = pid.getTableId();
+        if (tableCovers(tid, table, mode)) return true;
+        lockManager.acquire(tid, table, mode.intention());
+        LockMode page = lockManager.getLockMode(tid, pid);
+        if (page != null && page.covers(mode)) return true;
+        lockManager.acquire(tid, pid, mode.intention());
+        return false;
+    }
+
+    /**
+     * Lock a tuple of a heap file only if that needs no wait; safe to call
+     * while holding a page latch. The page must have been locked with
+     * {@link #lockRecordPage(TransactionId, PageId, LockMode)} before.
+     *
+     * @return true if the transaction holds the lock, or one covering it, now
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid, LockMode mode) {
+        if (holdsRecordLock(tid, rid, mode)) return true;
+        if (!lockable(tid, mode) || !lockManager.tryAcquire(tid, rid, mode)) return false;
+        countFineLock(tid, rid.getPageId().getTableId(), true, mode == LockMode.EXCLUSIVE);
+        return true;
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the tuple, its page or
+     * its table that covers the given mode
+     */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid, LockMode mode) {
+        PageId pid = rid.getPageId();
+        for (Object resource : new Object[]{pid.getTableId(), pid, rid}) {
+            LockMode held = lockManager.getLockMode(tid, resource);
+            if (held != null && held.covers(mode)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lock a key of the index of a table, for key-range locking, for as long
+     * as the transaction runs or until {@link #releaseKey(TransactionId, IndexKey)}.
+     * May block.
+     */
+    public void lockKey(TransactionId tid, IndexKey key, LockMode mode)
+            throws DbException, TransactionAbortedException {
+        checkLockable(tid, mode);
+        Integer table = key.getTableId();
+        if (isSnapshot(tid) || tableCovers(tid, table, mode)) return;
+        lockManager.acquire(tid, table, mode.intention());
+        boolean fresh = lockManager.getLockMode(tid, key) == null;
+        lockManager.acquire(tid, key, mode);
+        if (countFineLock(tid, table, fresh, mode == LockMode.EXCLUSIVE)) escalate(tid, table);
+    }
+
+    /**
+     * Lock a key of the index of a table like
+     * {@link #lockKey(TransactionId, IndexKey, LockMode)}, only if that needs
+     * no wait; safe to call while holding a latch.
+     *
+     * @return true if the transaction holds the lock, or one covering it, now
+     */
+    public boolean tryLockKey(TransactionId tid, IndexKey key, LockMode mode) {
+        Integer table = key.getTableId();
+        if (isSnapshot(tid) || tableCovers(tid, table, mode)) return true;
+        LockMode held = lockManager.getLockMode(tid, key);
+        if (held != null && held.covers(mode)) return true;
+        if (!lockable(tid, mode)) return false;
+        boolean tableFresh = lockManager.getLockMode(tid, table) == null;
+        if (!lockManager.tryAcquire(tid, table, mode.intention())) return false;
+        if (!lockManager.tryAcquire(tid, key, mode)) {
+            if (tableFresh) lockManager.release(tid, table);
+            return false;
+        }
+        if (countFineLock(tid, table, held == null, mode == LockMode.EXCLUSIVE)) tryEscalate(tid, table);
+        return true;
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the key, or on its
+     * table, that covers the given mode
+     */
+    public boolean holdsKeyLock(TransactionId tid, IndexKey key, LockMode mode) {
+        if (tableCovers(tid, key.getTableId(), mode)) return true;
+        LockMode held = lockManager.getLockMode(tid, key);
+        return held != null && held.covers(mode);
+    }
+
+    /**
+     * Release the lock on a key of an index, for locks only needed for a
+     * moment, such as the lock an insert takes on the key following the new one.
+     */
+    public void releaseKey(TransactionId tid, IndexKey key) {
+        if (!lockManager.holdsLock(tid, key)) return;
+        lockManager.release(tid, key);
+        uncountFineLock(tid, key.getTableId());
+    }
+
+    /**
+     * Make heap files lock the tuples they read and change instead of their
+     * pages, or go back to page locks. Change this only while no
+     * transaction is running.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * @return the log of the tuple changes made under record locking
+     */
+    UndoLog getUndoLog() {
+        return undoLog;
+    }
+
+    /**
+     * @return the lock manager holding the page locks of this pool
+     */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * @return a stamp to take before reading pages ahead, to be passed to
+     * {@link #prefetched(Page, long)}
+     */
+    long prefetchEpoch() {
+        return diskEpoch.get();
+    }
+
+    /**
+     * Offer a page read ahead of a scan, without any lock, to the pool. The
+     * page is dropped if it is cached already, if there is no free frame, or
+     * if any page was written or discarded since the epoch was taken, as the
+     * copy read may be stale. Pages are marked clean before they can be
+     * evicted and only after the epoch is bumped, so a stale copy can never
+     * replace one that left the pool meanwhile. Read-ahead never evicts, so
+     * it cannot take the frame a foreground read needs.
+     *
+     * @param epoch the value of {@link #prefetchEpoch()} taken before the read
+     * @return false if the page was dropped
+     */
+    boolean prefetched(Page page, long epoch) {
+        return peekPage(page.getId()) == null && partitionOf(page.getId()).admitPrefetched(page, epoch);
+    }
+
+    /**
+     * @return the number of frames taken, by cached pages and by pages being
+     * read in; unlike {@link #getStats()}, read atomically
+     */
+    int getFramesTaken() {
+        return resident.get();
+    }
+
+    /**
+     * @return the cached copy of a page, or null; takes no lock, so the page
+     * may only be used as a hint
+     */
+    Page peekPage(PageId pid) {
+        Partition part = partitionOf(pid);
+        Page page = part.pages.get(pid);
+        return page != null ? page : part.ringPages.get(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -298,10 +1532,17 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        LockInfo info = locks.get(new TransactionPagePair(tid, pid));
-        if (info != null) {
-            info.unlock();
-            locks.remove(new TransactionPagePair(tid, pid));
+        if (!lockManager.holdsLock(tid, pid)) return;
+        lockManager.release(tid, pid);
+        uncountFineLock(tid, pid.getTableId());
+    }
+
+    private void uncountFineLock(TransactionId tid, Integer table) {
+        Map<Integer, int[]> counts = fineLocks.get(tid);
+        int[] count = counts == null ? null : counts.get(table);
+        if (count == null) return;
+        synchronized (count) {
+            if (count[0] > 0) count[0]--;
         }
     }
 
@@ -318,32 +1559,234 @@ public class BufferPool {
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return locks.containsKey(new TransactionPagePair(tid, p));
+        return lockManager.holdsLock(tid, p) || tableCovers(tid, p.getTableId(), LockMode.SHARED);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. A commit already prepared with
+     * {@link #prepareCommit(TransactionId)} is not prepared again.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-        if (commit) flushPages(tid);
-        else {
-            for (Map.Entry<TransactionPagePair, LockInfo> entry : locks.entrySet())
-                if (entry.getKey().getTid().equals(tid) && entry.getValue().isWrite())
-                    discardPage(entry.getKey().getPid());
+        if (readOnly.remove(tid)) {
+            // it wrote nothing and holds no exclusive locks
+            for (Partition part : partitions) part.unpinAll(tid);
+            lockManager.releaseAll(tid);
+            fineLocks.remove(tid);
+            return;
+        }
+        boolean wasPrepared = prepared.remove(tid);
+        if (commit) {
+            if (!wasPrepared && prepareCommit(tid) > 0) Database.getLogFile().force();
+        } else {
+            rollbackRecords(tid);
+            for (PageId pid : writeLocked(tid))
+                rollbackPage(partitionOf(pid), pid, tid);
+        }
+        for (Partition part : partitions) part.unpinAll(tid);
+        lockManager.releaseAll(tid);
+        fineLocks.remove(tid);
+        tableWritten.remove(tid);
+        versions.end(tid);
+    }
+
+    /**
+     * Make the changes of a committing transaction durable. Without a page
+     * cleaner this writes its dirty pages to disk (FORCE). With one, it
+     * writes an UPDATE record for each of them to the log and leaves the
+     * pages to the cleaner; the caller must force the log before reporting
+     * the commit.
+     * <p>
+     * Pages changed under record locking are always written, without the
+     * changes of other running transactions, as the cleaner could only write
+     * them back with those changes.
+     * <p>
+     * While snapshots are running, commits go one at a time, and each first
+     * retains the committed versions of the pages it changes.
+     *
+     * @param tid the committing transaction
+     * @return the number of pages logged instead of written
+     */
+    public int prepareCommit(TransactionId tid) throws IOException {
+        if (isReadOnly(tid)) return 0;
+        int logged;
+        commitLock.readLock().lock();
+        try {
+            if (!versions.hasSnapshots()) {
+                logged = commit(tid);
+            } else {
+                synchronized (commitOrder) {
+                    long commit = versions.nextCommit();
+                    retainVersions(tid, commit);
+                    logged = commit(tid);
+                    versions.committed(commit);
+                }
+            }
+        } finally {
+            commitLock.readLock().unlock();
+        }
+        prepared.add(tid);
+        return logged;
+    }
+
+    /**
+     * Retain the committed versions of the pages a committing transaction
+     * changed, for the running snapshots.
+     */
+    private void retainVersions(TransactionId tid, long commit) throws IOException {
+        Set<PageId> changed = new LinkedHashSet<>(undoLog.getPages(tid));
+        for (PageId pid : writeLocked(tid)) {
+            Page page = partitionOf(pid).pages.get(pid);
+            if (page != null && page.isDirty() != null) changed.add(pid);
         }
-        for (Map.Entry<TransactionPagePair, LockInfo> entry : locks.entrySet())
-            if (entry.getKey().getTid().equals(tid))
-                entry.getValue().unlock();
+        for (PageId pid : changed) {
+            Page page = partitionOf(pid).pages.get(pid);
+            if (page == null) continue;
+            try {
+                versions.retain(committedCopy(page), commit);
+            } catch (DbException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private int commit(TransactionId tid) throws IOException {
+        flushRecords(tid);
+        if (cleaner == null) {
+            // the pages as written are the committed versions now
+            for (Page page : flush(writeLocked(tid))) page.setBeforeImage();
+            return 0;
+        }
+        int logged = 0;
+        for (PageId pid : writeLocked(tid)) {
+            Partition part = partitionOf(pid);
+            Page page = part.pages.get(pid);
+            if (page == null || !tid.equals(page.isDirty())) continue;
+            Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+            page.setBeforeImage();
+            page.markDirty(true, cleanerTid);
+            if (part.committed.add(pid)) committedDirty.incrementAndGet();
+            logged++;
+        }
+        PageCleaner c = cleaner;
+        if (logged > 0 && c != null) c.pagesCommitted(committedDirty.get());
+        return logged;
+    }
+
+    /**
+     * Undo the changes of an aborting transaction to a page it holds a write
+     * lock on: drop the page, or, if it also holds committed changes that are
+     * not on disk yet, go back to its image as of the last commit.
+     */
+    private void rollbackPage(Partition part, PageId pid, TransactionId tid) {
+        if (!part.committed.contains(pid)) {
+            part.discard(pid);
+            return;
+        }
+        Page page = part.pages.get(pid);
+        if (page != null && tid.equals(page.isDirty())) {
+            Page before = page.getBeforeImage();
+            before.markDirty(true, cleanerTid);
+            part.pages.replace(pid, before);
+        }
+    }
+
+    /**
+     * Write the committed image of each page a committing transaction changed
+     * under record locking: the page as it is, but for the changes of the
+     * transactions still running. The page stays dirty if there are any.
+     */
+    private void flushRecords(TransactionId tid) throws IOException {
+        for (PageId pid : undoLog.getPages(tid)) {
+            Partition part = partitionOf(pid);
+            Page page = part.pages.get(pid);
+            try {
+                if (page == null) {
+                    undoLog.drop(tid, pid, null);
+                    continue;
+                }
+                synchronized (page) {
+                    HeapPage image = undoLog.committedImage((HeapPage) page, tid);
+                    long start = System.nanoTime();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+                    flushNanos.addAndGet(System.nanoTime() - start);
+                    flushes.incrementAndGet();
+                    diskEpoch.incrementAndGet();
+                    undoLog.drop(tid, pid, null);
+                    part.forget(pid);
+                    settle(part, page);
+                    if (page.isDirty() == null) page.setBeforeImage();
+                }
+            } catch (DbException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Undo the changes an aborting transaction made under record locking,
+     * leaving those of other transactions on the same pages in place.
+     */
+    private void rollbackRecords(TransactionId tid) {
+        for (PageId pid : undoLog.getPages(tid)) {
+            Partition part = partitionOf(pid);
+            Page page = part.pages.get(pid);
+            try {
+                if (page == null) {
+                    undoLog.drop(tid, pid, null);
+                    continue;
+                }
+                synchronized (page) {
+                    undoLog.drop(tid, pid, (HeapPage) page);
+                    settle(part, page);
+                }
+            } catch (DbException e) {
+                throw new IllegalStateException("cannot undo changes to " + pid, e);
+            }
+        }
+    }
+
+    /**
+     * Mark a page changed under record locking dirty by one of the running
+     * transactions with changes on it, or clean if there are none and all
+     * committed changes are on disk.
+     */
+    private void settle(Partition part, Page page) {
+        TransactionId writer = undoLog.getWriter(page.getId());
+        if (writer == null && part.committed.contains(page.getId())) writer = cleanerTid;
+        page.markDirty(writer != null, writer);
+    }
+
+    private void checkWritable(TransactionId tid) throws DbException {
+        if (isSnapshot(tid))
+            throw new DbException("transaction " + tid.getId() + " reads from a snapshot and cannot write");
+        checkNotReadOnly(tid);
+    }
+
+    private void checkNotReadOnly(TransactionId tid) throws DbException {
+        if (declaredReadOnly(tid))
+            throw new DbException("transaction " + tid.getId() + " is read-only and cannot write");
+    }
+
+    // a read-only transaction takes S and IS locks only
+    private void checkLockable(TransactionId tid, LockMode mode) throws DbException {
+        if (!isReadMode(mode)) checkNotReadOnly(tid);
+    }
+
+    private boolean lockable(TransactionId tid, LockMode mode) {
+        return isReadMode(mode) || !declaredReadOnly(tid);
+    }
+
+    private static boolean isReadMode(LockMode mode) {
+        return mode == LockMode.SHARED || mode == LockMode.INTENTION_SHARED;
     }
 
     private void ensureModifiedPages(Page page) throws DbException {
-        if (!pool.containsKey(page.getId()) && pool.size() == numPages) evictPage();
-        pool.put(page.getId(), page);
+        partitionOf(page.getId()).install(page);
     }
 
     /**
@@ -363,6 +1806,7 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         for (Page p : file.insertTuple(tid, t)) {
             ensureModifiedPages(p);
@@ -385,6 +1829,7 @@ public class BufferPool {
      */
     public void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         for (Page p : file.deleteTuple(tid, t)) {
             ensureModifiedPages(p);
@@ -398,9 +1843,9 @@ public class BufferPool {
      * break simpledb if running in NO STEAL mode.
      */
     public void flushAllPages() throws IOException {
-        for (PageId pageId : new ArrayList<>(pool.keySet())) {
-            flushPage(pageId);
-        }
+        List<PageId> pids = new ArrayList<>();
+        for (Partition part : partitions) pids.addAll(part.pages.keySet());
+        flush(pids);
     }
 
     /**
@@ -413,7 +1858,7 @@ public class BufferPool {
      * are removed from the cache so they can be reused safely
      */
     public void discardPage(PageId pid) {
-        pool.remove(pid);
+        partitionOf(pid).discard(pid);
     }
 
     /**
@@ -422,39 +1867,81 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private void flushPage(PageId pid) throws IOException {
-        if (pool.containsKey(pid) && pool.get(pid).isDirty() != null) {
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pool.get(pid));
-            pool.get(pid).markDirty(false, null);
+        Partition part = partitionOf(pid);
+        Page page = part.pages.get(pid);
+        if (page != null && page.isDirty() != null) writeClean(page);
+        part.forget(pid);
+    }
+
+    /**
+     * Write a page to disk and mark it clean. The disk epoch is bumped
+     * before the page is marked clean, hence before it can be evicted.
+     */
+    private void writeClean(Page page) throws IOException {
+        long start = System.nanoTime();
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        flushNanos.addAndGet(System.nanoTime() - start);
+        flushes.incrementAndGet();
+        diskEpoch.incrementAndGet();
+        page.markDirty(false, null);
+    }
+
+    /**
+     * Write the dirty pages among the given ones to disk, a batch per file,
+     * and forget the pages' flush state.
+     *
+     * @return the pages written
+     */
+    private List<Page> flush(List<PageId> pids) throws IOException {
+        List<Page> dirty = new ArrayList<>();
+        for (PageId pid : pids) {
+            Page page = partitionOf(pid).pages.get(pid);
+            if (page != null && page.isDirty() != null) dirty.add(page);
         }
+        writeClean(dirty);
+        for (PageId pid : pids) partitionOf(pid).forget(pid);
+        return dirty;
+    }
+
+    /**
+     * Write pages to disk with one {@link DbFile#writePages(List)} per file,
+     * which sorts and coalesces the writes, and mark them clean.
+     *
+     * @see #writeClean(Page)
+     */
+    private void writeClean(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) return;
+        Map<Integer, List<Page>> byFile = new LinkedHashMap<>();
+        for (Page page : pages)
+            byFile.computeIfAbsent(page.getId().getTableId(), t -> new ArrayList<>()).add(page);
+        long start = System.nanoTime();
+        for (Map.Entry<Integer, List<Page>> entry : byFile.entrySet())
+            Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(entry.getValue());
+        flushNanos.addAndGet(System.nanoTime() - start);
+        flushes.addAndGet(pages.size());
+        diskEpoch.incrementAndGet();
+        for (Page page : pages) page.markDirty(false, null);
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
     public void flushPages(TransactionId tid) throws IOException {
-        for (Map.Entry<TransactionPagePair, LockInfo> entry : locks.entrySet())
-            if (entry.getKey().getTid().equals(tid) && entry.getValue().isWrite())
-                flushPage(entry.getKey().getPid());
+        flush(writeLocked(tid));
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * @return the pages the transaction holds a write lock on, or wrote
+     * under a table lock, i.e. the pages it may have dirtied
      */
-    private synchronized void evictPage() throws DbException {
-        Iterator<Map.Entry<PageId, Page>> iterator = pool.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> entry = iterator.next();
-            if (entry.getValue().isDirty() != null) continue;
-            try {
-                flushPage(entry.getKey());
-                iterator.remove();
-                return;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        throw new DbException("All pages are dirty");
+    private List<PageId> writeLocked(TransactionId tid) {
+        Set<PageId> pids = new LinkedHashSet<>();
+        for (Map.Entry<Object, LockMode> entry : lockManager.getLocks(tid).entrySet())
+            if (entry.getKey() instanceof PageId && entry.getValue() == LockMode.EXCLUSIVE)
+                pids.add((PageId) entry.getKey());
+        Set<PageId> written = tableWritten.get(tid);
+        if (written != null) pids.addAll(written);
+        return new ArrayList<>(pids);
     }
 
 }
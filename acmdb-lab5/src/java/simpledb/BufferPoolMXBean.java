@@ -0,0 +1,60 @@
+package simpledb;
+
+import java.util.Map;
+
+/**
+ * Management interface of the buffer pool, registered with the platform
+ * MBean server as {@value BufferPoolMetrics#OBJECT_NAME}. Every getter
+ * reports on the current buffer pool of the Database.
+ *
+ * @see BufferPoolStats
+ */
+public interface BufferPoolMXBean {
+
+    public int getCapacity();
+
+    /**
+     * Resize the buffer pool.
+     *
+     * @see BufferPool#resize(int)
+     */
+    public void setCapacity(int capacity);
+
+    public int getResidentPages();
+
+    public int getDirtyPages();
+
+    public int getPinnedPages();
+
+    public long getHits();
+
+    public long getMisses();
+
+    public double getHitRatio();
+
+    public long getEvictions();
+
+    public long getFlushes();
+
+    public double getAverageFlushMillis();
+
+    public Map<String, Integer> getPagesByTable();
+
+    public Map<String, Integer> getPagesByCategory();
+
+    public long getHeapBytesRead();
+
+    public long getHeapBytesWritten();
+
+    public long getBTreeBytesRead();
+
+    public long getBTreeBytesWritten();
+
+    public long getCompressedCacheHits();
+
+    public long getCompressedCacheMisses();
+
+    public long getCompressedCacheBytes();
+
+    public double getCompressedCacheRatio();
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * BufferPoolMetrics exports the statistics of the Database's buffer pool
+ * over JMX. It is registered once per process, when the first Database is
+ * created, unless -Dsimpledb.BufferPool.jmx=false; as the buffer pool is
+ * looked up on every call, it keeps working across Database.reset().
+ */
+public class BufferPoolMetrics implements BufferPoolMXBean {
+
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+    /**
+     * Register the MBean with the platform MBean server, if this has not
+     * been done yet.
+     */
+    static void registerOnce() {
+        if (!Boolean.parseBoolean(System.getProperty("simpledb.BufferPool.jmx", "true"))) return;
+        if (!registered.compareAndSet(false, true)) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new BufferPoolMetrics(),
+                    new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Debug.log(1, "BufferPoolMetrics: cannot register MBean: %s", e);
+        }
+    }
+
+    private static BufferPoolStats stats() {
+        return Database.getBufferPool().getStats();
+    }
+
+    public int getCapacity() {
+        return stats().getCapacity();
+    }
+
+    public void setCapacity(int capacity) {
+        Database.getBufferPool().resize(capacity);
+    }
+
+    public int getResidentPages() {
+        return stats().getResidentPages();
+    }
+
+    public int getDirtyPages() {
+        return stats().getDirtyPages();
+    }
+
+    public int getPinnedPages() {
+        return stats().getPinnedPages();
+    }
+
+    public long getHits() {
+        return Database.getBufferPool().getHitCount();
+    }
+
+    public long getMisses() {
+        return Database.getBufferPool().getMissCount();
+    }
+
+    public double getHitRatio() {
+        return Database.getBufferPool().getHitRatio();
+    }
+
+    public long getEvictions() {
+        return stats().getEvictions();
+    }
+
+    public long getFlushes() {
+        return stats().getFlushes();
+    }
+
+    public double getAverageFlushMillis() {
+        return stats().getAverageFlushMillis();
+    }
+
+    /**
+     * @return the number of resident pages by table name, or by table id for
+     * tables missing from the catalog
+     */
+    public Map<String, Integer> getPagesByTable() {
+        Map<String, Integer> byName = new TreeMap<>();
+        for (Map.Entry<Integer, Integer> entry : stats().getPagesByTable().entrySet()) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(entry.getKey());
+            } catch (NoSuchElementException e) {
+                name = String.valueOf(entry.getKey());
+            }
+            byName.merge(name, entry.getValue(), Integer::sum);
+        }
+        return byName;
+    }
+
+    public Map<String, Integer> getPagesByCategory() {
+        return stats().getPagesByCategory();
+    }
+
+    public long getHeapBytesRead() {
+        return DiskStats.HEAP.getBytesRead();
+    }
+
+    public long getHeapBytesWritten() {
+        return DiskStats.HEAP.getBytesWritten();
+    }
+
+    public long getBTreeBytesRead() {
+        return DiskStats.BTREE.getBytesRead();
+    }
+
+    public long getBTreeBytesWritten() {
+        return DiskStats.BTREE.getBytesWritten();
+    }
+
+    // the compressed cache counters are 0 when the pool has no compressed cache
+
+    public long getCompressedCacheHits() {
+        CompressedPageCache c = Database.getBufferPool().getCompressedCache();
+        return c == null ? 0 : c.getHitCount();
+    }
+
+    public long getCompressedCacheMisses() {
+        CompressedPageCache c = Database.getBufferPool().getCompressedCache();
+        return c == null ? 0 : c.getMissCount();
+    }
+
+    public long getCompressedCacheBytes() {
+        CompressedPageCache c = Database.getBufferPool().getCompressedCache();
+        return c == null ? 0 : c.getBytes();
+    }
+
+    public double getCompressedCacheRatio() {
+        CompressedPageCache c = Database.getBufferPool().getCompressedCache();
+        return c == null ? 0 : c.getCompressionRatio();
+    }
+}
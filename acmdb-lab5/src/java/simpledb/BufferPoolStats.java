@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * BufferPoolStats is a snapshot of the counters and the occupancy of a
+ * BufferPool, taken by {@link BufferPool#getStats()}. Counters are
+ * cumulative since the pool was created, except for the disk byte counts,
+ * which are cumulative since the process started (see {@link DiskStats}).
+ */
+public class BufferPoolStats {
+
+    private final int capacity;
+    private final int residentPages;
+    private final int dirtyPages;
+    private final int pinnedPages;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long flushes;
+    private final long flushNanos;
+    private final Map<Integer, Integer> pagesByTable;
+    private final Map<String, Integer> pagesByCategory;
+    private final long heapBytesRead;
+    private final long heapBytesWritten;
+    private final long btreeBytesRead;
+    private final long btreeBytesWritten;
+
+    BufferPoolStats(int capacity, int residentPages, int dirtyPages, int pinnedPages,
+                    long hits, long misses, long evictions, long flushes, long flushNanos,
+                    Map<Integer, Integer> pagesByTable, Map<String, Integer> pagesByCategory) {
+        this.capacity = capacity;
+        this.residentPages = residentPages;
+        this.dirtyPages = dirtyPages;
+        this.pinnedPages = pinnedPages;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.flushes = flushes;
+        this.flushNanos = flushNanos;
+        this.pagesByTable = Collections.unmodifiableMap(new TreeMap<>(pagesByTable));
+        this.pagesByCategory = Collections.unmodifiableMap(new TreeMap<>(pagesByCategory));
+        this.heapBytesRead = DiskStats.HEAP.getBytesRead();
+        this.heapBytesWritten = DiskStats.HEAP.getBytesWritten();
+        this.btreeBytesRead = DiskStats.BTREE.getBytesRead();
+        this.btreeBytesWritten = DiskStats.BTREE.getBytesWritten();
+    }
+
+    /**
+     * @return the name of the category of a page: "heap", or "root_ptr",
+     * "internal", "leaf" or "header" for B+ tree pages
+     */
+    public static String categoryOf(PageId pid) {
+        if (!(pid instanceof BTreePageId)) return "heap";
+        switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return "root_ptr";
+            case BTreePageId.INTERNAL:
+                return "internal";
+            case BTreePageId.LEAF:
+                return "leaf";
+            default:
+                return "header";
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getResidentPages() {
+        return residentPages;
+    }
+
+    public int getDirtyPages() {
+        return dirtyPages;
+    }
+
+    public int getPinnedPages() {
+        return pinnedPages;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of page requests served from memory, or 0 if
+     * there were none
+     */
+    public double getHitRatio() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of pages written back to disk by the pool
+     */
+    public long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return the mean time to write back one page, in milliseconds
+     */
+    public double getAverageFlushMillis() {
+        return flushes == 0 ? 0 : flushNanos / 1e6 / flushes;
+    }
+
+    /**
+     * @return the number of resident pages of each table, by table id
+     */
+    public Map<Integer, Integer> getPagesByTable() {
+        return pagesByTable;
+    }
+
+    /**
+     * @return the number of resident pages of each category
+     * @see #categoryOf(PageId)
+     */
+    public Map<String, Integer> getPagesByCategory() {
+        return pagesByCategory;
+    }
+
+    public long getHeapBytesRead() {
+        return heapBytesRead;
+    }
+
+    public long getHeapBytesWritten() {
+        return heapBytesWritten;
+    }
+
+    public long getBTreeBytesRead() {
+        return btreeBytesRead;
+    }
+
+    public long getBTreeBytesWritten() {
+        return btreeBytesWritten;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pages %d/%d (%d dirty, %d pinned), hits %d, misses %d (%.1f%% hit), "
+                        + "evictions %d, flushes %d (%.3f ms avg), heap read/written %d/%d bytes, "
+                        + "btree read/written %d/%d bytes, by category %s",
+                residentPages, capacity, dirtyPages, pinnedPages, hits, misses, 100 * getHitRatio(),
+                evictions, flushes, getAverageFlushMillis(), heapBytesRead, heapBytesWritten,
+                btreeBytesRead, btreeBytesWritten, pagesByCategory);
+    }
+}
@@ -118,8 +118,9 @@ public class Catalog {
         return names.get(idx);
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, and close the files open for page I/O */
     public void clear() {
+        PageFile.closeAll();
         files.clear();
         names.clear();
         pkeyFields.clear();
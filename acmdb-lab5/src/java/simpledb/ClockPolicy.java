@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClockPolicy approximates LRU with one reference bit per frame. Frames sit on
+ * a circular list; a hit sets the bit of the page, and the clock hand sweeps
+ * the list clearing bits until it finds an evictable page whose bit is
+ * already clear.
+ *
+ * @see ReplacementPolicy
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<>();
+    private final BitSet referenced = new BitSet();
+    private final Map<PageId, Integer> slotOf = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand = 0;
+
+    public synchronized void admit(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot == null) {
+            slot = freeSlots.isEmpty() ? frames.size() : freeSlots.poll();
+            if (slot == frames.size()) frames.add(pid);
+            else frames.set(slot, pid);
+            slotOf.put(pid, slot);
+        }
+        referenced.set(slot);
+    }
+
+    public synchronized void access(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) referenced.set(slot);
+    }
+
+    public synchronized void remove(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) release(slot);
+    }
+
+    public synchronized PageId evict(java.util.function.Predicate<PageId> evictable) {
+        int n = frames.size();
+        // the first sweep may do nothing but clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            int slot = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(slot);
+            if (pid == null) continue;
+            if (referenced.get(slot)) {
+                referenced.clear(slot);
+            } else if (evictable.test(pid)) {
+                slotOf.remove(pid);
+                release(slot);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<PageId> hottestFirst() {
+        // the hand reaches the slots just behind it last; referenced pages survive one more sweep
+        List<PageId> referencedPages = new ArrayList<>(), others = new ArrayList<>();
+        int n = frames.size();
+        for (int i = 1; i <= n; i++) {
+            int slot = ((hand - i) % n + n) % n;
+            PageId pid = frames.get(slot);
+            if (pid == null) continue;
+            (referenced.get(slot) ? referencedPages : others).add(pid);
+        }
+        referencedPages.addAll(others);
+        return referencedPages;
+    }
+
+    private void release(int slot) {
+        frames.set(slot, null);
+        referenced.clear(slot);
+        freeSlots.add(slot);
+    }
+
+    public String getName() {
+        return "clock";
+    }
+}
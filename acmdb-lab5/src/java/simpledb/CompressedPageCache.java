@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CompressedPageCache keeps clean pages evicted from the BufferPool in
+ * compressed form (see {@link LZCodec}), so that a working set somewhat
+ * larger than the pool is served from memory: a miss of the pool
+ * decompresses the page instead of reading it from disk. Pages that do not
+ * compress are stored as they are.
+ * <p>
+ * The cache is bounded by the number of bytes it stores; when it is full,
+ * the page stored first is dropped.
+ *
+ * @Threadsafe
+ */
+public class CompressedPageCache {
+
+    private static class Entry {
+        final byte[] data;
+        final int length;
+
+        Entry(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<PageId, Entry> entries = new LinkedHashMap<>();
+    private long bytes = 0;
+    private long rawBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long dropped = 0;
+
+    /**
+     * @param maxBytes the maximum number of bytes of compressed pages to keep
+     */
+    public CompressedPageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Store a compressed copy of the page, replacing an older copy if there
+     * is one, and drop the oldest pages until the cache fits its bound.
+     *
+     * @param pid  the id of the page
+     * @param data the page data, as returned by {@link Page#getPageData()}
+     * @return false if the page alone exceeds the bound
+     */
+    public boolean put(PageId pid, byte[] data) {
+        byte[] compressed = LZCodec.compress(data);
+        if (compressed.length >= data.length) compressed = data.clone();
+        synchronized (this) {
+            remove(pid);
+            if (compressed.length > maxBytes) return false;
+            entries.put(pid, new Entry(compressed, data.length));
+            bytes += compressed.length;
+            rawBytes += data.length;
+            Iterator<Map.Entry<PageId, Entry>> oldest = entries.entrySet().iterator();
+            while (bytes > maxBytes) {
+                Entry e = oldest.next().getValue();
+                oldest.remove();
+                bytes -= e.data.length;
+                rawBytes -= e.length;
+                dropped++;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remove a page from the cache and decompress it. Counts a hit or a miss.
+     *
+     * @return the page data, or null if the page is not in the cache
+     */
+    public byte[] take(PageId pid) {
+        Entry e;
+        synchronized (this) {
+            e = entries.remove(pid);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            bytes -= e.data.length;
+            rawBytes -= e.length;
+        }
+        return e.data.length == e.length ? e.data : LZCodec.decompress(e.data, e.length);
+    }
+
+    /**
+     * Drop a page from the cache, if it is there.
+     */
+    public synchronized void remove(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e != null) {
+            bytes -= e.data.length;
+            rawBytes -= e.length;
+        }
+    }
+
+    /**
+     * @return the number of pages in the cache
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bytes the cached pages take up, compressed
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the size of the cached pages uncompressed divided by their
+     * size compressed, or 0 if the cache is empty
+     */
+    public synchronized double getCompressionRatio() {
+        return bytes == 0 ? 0 : (double) rawBytes / bytes;
+    }
+
+    /**
+     * @return the number of lookups that found the page
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that did not find the page
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of pages dropped to keep the cache within its bound
+     */
+    public synchronized long getDropCount() {
+        return dropped;
+    }
+}
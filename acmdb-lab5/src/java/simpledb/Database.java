@@ -32,6 +32,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        BufferPoolMetrics.registerOnce();
         // startControllerThread();
     }
 
@@ -59,6 +60,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.shutdown();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
@@ -75,6 +77,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        _instance.get()._bufferpool.shutdown();
         _instance.set(new Database());
     }
 
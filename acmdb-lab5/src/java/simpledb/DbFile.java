@@ -28,6 +28,27 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk, and force them there. Files
+     * may sort and coalesce the writes; by default the pages are written one
+     * by one with {@link #writePage(Page)}.
+     *
+     * @param pages the pages to write
+     * @throws IOException if a write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages) writePage(p);
+    }
+
+    /**
+     * Build a page of this file from its on-disk representation, as returned
+     * by {@link Page#getPageData()}, without reading the disk. Used by the
+     * buffer pool to bring back pages it keeps outside the Java heap.
+     *
+     * @throws IOException if the data is not a page of this file
+     */
+    public Page createPage(PageId id, byte[] data) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
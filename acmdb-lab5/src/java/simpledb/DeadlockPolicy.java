@@ -0,0 +1,35 @@
+package simpledb;
+
+/**
+ * How the {@link LockManager} keeps transactions from waiting for each
+ * other forever. The timestamp-based policies order transactions by their
+ * id: a transaction with a smaller id started earlier and is older.
+ */
+public enum DeadlockPolicy {
+    /**
+     * Let transactions wait; a background thread periodically looks for
+     * cycles in the waits-for graph and aborts the youngest transaction of
+     * each.
+     */
+    DETECT,
+    /**
+     * An older transaction may wait for a younger one; a younger one asking
+     * for a lock an older one holds or waits for aborts ("dies") at once.
+     */
+    WAIT_DIE,
+    /**
+     * A younger transaction may wait for an older one; an older one asking
+     * for a lock a younger one holds or waits for aborts ("wounds") the
+     * younger one and waits. A wounded transaction that is not waiting
+     * aborts on its next lock request.
+     */
+    WOUND_WAIT;
+
+    /**
+     * @param name "detect", "wait-die" or "wound-wait", in any case
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static DeadlockPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
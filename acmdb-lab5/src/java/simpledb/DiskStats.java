@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DiskStats counts the bytes a kind of DbFile has read from and written to
+ * disk since the process started. Page reads and writes of HeapFile and
+ * BTreeFile are counted in {@link #HEAP} and {@link #BTREE}.
+ *
+ * @Threadsafe
+ */
+public class DiskStats {
+
+    public static final DiskStats HEAP = new DiskStats();
+    public static final DiskStats BTREE = new DiskStats();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    void read(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    void written(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+}
@@ -2,10 +2,11 @@ package simpledb;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.stream.IntStream;
 
@@ -15,6 +16,12 @@ import java.util.stream.IntStream;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Under record locking (see {@link BufferPool#setRecordLocking(boolean)})
+ * the file locks single tuples: a delete locks the tuple exclusively, an
+ * insert locks the free slot it takes, and scans lock each tuple they
+ * return, waiting for tuples deleted by running transactions as well. Pages
+ * are only latched, i.e. synchronized on, while they are read or changed.
  *
  * @author Sam Madden
  * @see simpledb.HeapPage#HeapPage
@@ -23,6 +30,7 @@ public class HeapFile implements DbFile {
 
     private final File f;
     private final TupleDesc td;
+    private final PageFile io;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -33,6 +41,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         this.f = f;
         this.td = td;
+        this.io = PageFile.of(f);
     }
 
     /**
@@ -69,33 +78,99 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         byte[] page = new byte[BufferPool.getPageSize()];
-        try (RandomAccessFile f = new RandomAccessFile(this.f, "r")) {
-            f.seek((long) pid.pageNumber() * BufferPool.getPageSize());
-            f.read(page);
+        try {
+            DiskStats.HEAP.read(io.read(ByteBuffer.wrap(page), (long) pid.pageNumber() * BufferPool.getPageSize()));
             return new HeapPage(new HeapPageId(pid.getTableId(), pid.pageNumber()), page);
         } catch (IOException e) {
             throw new IllegalArgumentException();
         }
     }
 
+    /**
+     * Read a run of consecutive pages with a single read; used to read ahead
+     * of sequential scans. Pages past the end of the file are left out.
+     *
+     * @param first the number of the first page to read
+     * @param count the number of pages to read
+     * @return the pages read, in page number order
+     */
+    public ArrayList<Page> readPages(int first, int count) {
+        int pageSize = BufferPool.getPageSize();
+        try {
+            count = (int) Math.max(0, Math.min(count, io.size() / pageSize - first));
+            byte[] data = new byte[count * pageSize];
+            int read = io.read(ByteBuffer.wrap(data), (long) first * pageSize);
+            DiskStats.HEAP.read(read);
+            count = read / pageSize;
+            ArrayList<Page> pages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] page = new byte[pageSize];
+                System.arraycopy(data, i * pageSize, page, 0, pageSize);
+                pages.add(new HeapPage(new HeapPageId(getId(), first + i), page));
+            }
+            return pages;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId id, byte[] data) throws IOException {
+        return new HeapPage(new HeapPageId(id.getTableId(), id.pageNumber()), data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        RandomAccessFile file = new RandomAccessFile(this.f, "rw");
-        file.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
-        file.write(page.getPageData());
-        file.close();
+        byte[] data = page.getPageData();
+        io.write(ByteBuffer.wrap(data), (long) page.getId().pageNumber() * BufferPool.getPageSize());
+        DiskStats.HEAP.written(data.length);
+    }
+
+    /**
+     * Write the pages in file order, each run of adjacent pages with a single
+     * gathering write, and force the file once.
+     *
+     * @see PageFile#writeBatch(long[], byte[][])
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        long[] offsets = new long[pages.size()];
+        byte[][] data = new byte[pages.size()][];
+        long bytes = 0;
+        for (int i = 0; i < data.length; i++) {
+            Page page = pages.get(i);
+            offsets[i] = (long) page.getId().pageNumber() * BufferPool.getPageSize();
+            data[i] = page.getPageData();
+            bytes += data[i].length;
+        }
+        io.writeBatch(offsets, data);
+        DiskStats.HEAP.written(bytes);
+    }
+
+    /**
+     * Read the pages of this file from a memory mapping of it, or stop
+     * doing so; this holds for every DbFile on the same file.
+     *
+     * @see PageFile#setMapped(boolean)
+     */
+    public void setMemoryMapped(boolean mapped) {
+        io.setMapped(mapped);
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) (f.length() / BufferPool.getPageSize());
+        try {
+            return (int) (io.size() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        if (Database.getBufferPool().isRecordLocking()) return insertRecord(tid, t);
         for (int i = 0; i < numPages(); i++) {
             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
             if (page.getNumEmptySlots() > 0) {
@@ -116,6 +191,7 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
+        if (Database.getBufferPool().isRecordLocking()) return deleteRecord(tid, t);
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
         ArrayList<Page> ret = new ArrayList<>();
@@ -123,28 +199,167 @@ public class HeapFile implements DbFile {
         return ret;
     }
 
+    /**
+     * Insert a tuple under record locking, into the first free slot that no
+     * running transaction has changed and that can be locked without a wait;
+     * if there is none, an empty page is appended. The page is locked in
+     * intention mode, which may wait, before it is latched.
+     */
+    private ArrayList<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td)) throw new DbException("tupledesc mismatch");
+        BufferPool pool = Database.getBufferPool();
+        for (int i = 0; ; i++) {
+            if (i >= numPages()) appendEmptyPage(i);
+            HeapPageId pid = new HeapPageId(getId(), i);
+            HeapPage page = (HeapPage) pool.pinPageUnlocked(tid, pid, null);
+            try {
+                synchronized (page) {
+                    if (page.getNumEmptySlots() == 0) continue;
+                }
+                pool.lockRecordPage(tid, pid, LockMode.EXCLUSIVE);
+                synchronized (page) {
+                    for (int slot = 0; slot < page.getNumSlots(); slot++) {
+                        RecordId rid = new RecordId(pid, slot);
+                        if (page.isSlotUsed(slot) || pool.getUndoLog().isChangedByOther(rid, tid)
+                                || !pool.tryLockRecord(tid, rid, LockMode.EXCLUSIVE))
+                            continue;
+                        page.insertTuple(t, slot);
+                        pool.getUndoLog().logInsert(tid, rid);
+                        page.markDirty(true, tid);
+                        ArrayList<Page> ret = new ArrayList<>();
+                        ret.add(page);
+                        return ret;
+                    }
+                }
+            } finally {
+                pool.unpinPage(tid, pid);
+            }
+        }
+    }
+
+    // append an empty page, unless another transaction did so already
+    private synchronized void appendEmptyPage(int pgNo) throws IOException {
+        if (numPages() <= pgNo)
+            writePage(new HeapPage(new HeapPageId(getId(), pgNo), HeapPage.createEmptyPageData()));
+    }
+
+    /**
+     * Delete a tuple under record locking: lock it exclusively, waiting if
+     * need be, then remove it from its page while holding the page latch.
+     */
+    private ArrayList<Page> deleteRecord(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null) throw new DbException("tuple is not stored in a table");
+        BufferPool pool = Database.getBufferPool();
+        pool.lockRecord(tid, rid, LockMode.EXCLUSIVE);
+        HeapPage page = (HeapPage) pool.pinPageUnlocked(tid, rid.getPageId(), null);
+        try {
+            synchronized (page) {
+                Tuple deleted = page.getTuple(rid.tupleno());
+                page.deleteTuple(t);
+                pool.getUndoLog().logDelete(tid, deleted);
+                page.markDirty(true, tid);
+            }
+        } finally {
+            pool.unpinPage(tid, rid.getPageId());
+        }
+        ArrayList<Page> ret = new ArrayList<>();
+        ret.add(page);
+        return ret;
+    }
+
+    /**
+     * Read the tuples of a page under record locking. Unless the page or the
+     * table is locked as a whole, every tuple of the page is locked in shared
+     * mode, as are the ones other transactions deleted but may yet restore;
+     * the page is read again once all are locked.
+     */
+    private Iterator<Tuple> readRecords(TransactionId tid, HeapPage page)
+            throws DbException, TransactionAbortedException {
+        BufferPool pool = Database.getBufferPool();
+        if (pool.lockRecordPage(tid, page.getId(), LockMode.SHARED)) {
+            synchronized (page) {
+                List<Tuple> tuples = new ArrayList<>();
+                page.iterator().forEachRemaining(tuples::add);
+                return tuples.iterator();
+            }
+        }
+        List<RecordId> rids = new ArrayList<>();
+        synchronized (page) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) rids.add(it.next().getRecordId());
+            for (Tuple deleted : pool.getUndoLog().getDeletedByOthers(page.getId(), tid))
+                rids.add(deleted.getRecordId());
+        }
+        for (RecordId rid : rids) pool.lockRecord(tid, rid, LockMode.SHARED);
+        List<Tuple> tuples = new ArrayList<>();
+        synchronized (page) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                // tuples inserted since are not locked, and not returned
+                if (pool.holdsRecordLock(tid, t.getRecordId(), LockMode.SHARED)) tuples.add(t);
+            }
+        }
+        return tuples.iterator();
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new DbFileIterator() {
             Iterator<Integer> page = Collections.emptyIterator();
             Iterator<Tuple> tuple = Collections.emptyIterator();
+            ScanRing ring = null;
+            ReadAhead readAhead = null;
+            int pages = 0;
+            HeapPageId pinned = null;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                page = IntStream.range(0, numPages()).iterator();
+                unpin();
+                pages = numPages();
+                // a scan of a large table locks it as a whole instead of page by page
+                int threshold = Database.getBufferPool().getLockEscalationThreshold();
+                if (threshold > 0 && pages >= threshold)
+                    Database.getBufferPool().lockTable(tid, getId(), LockMode.SHARED);
+                page = IntStream.range(0, pages).iterator();
+                ring = Database.getBufferPool().getScanRing(pages);
+                readAhead = ReadAhead.isEnabled() ? new ReadAhead(Database.getBufferPool()) : null;
+            }
+
+            private Iterator<Tuple> fetch(int pgNo) throws DbException, TransactionAbortedException {
+                HeapPageId pid = new HeapPageId(getId(), pgNo);
+                if (readAhead != null) readAhead.heapPageAccessed(HeapFile.this, pgNo, pages);
+                // the previous page is done with, so its frame may go to the next one
+                unpin();
+                if (Database.getBufferPool().isRecordLocking() && !Database.getBufferPool().isSnapshot(tid)) {
+                    HeapPage p = (HeapPage) Database.getBufferPool().pinPageUnlocked(tid, pid, ring);
+                    pinned = pid;
+                    return readRecords(tid, p);
+                }
+                HeapPage p = (HeapPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY, ring);
+                pinned = pid;
+                return p.iterator();
+            }
+
+            private void unpin() {
+                if (pinned != null) Database.getBufferPool().unpinPage(tid, pinned);
+                pinned = null;
             }
 
             @Override
             public boolean hasNext() throws DbException, TransactionAbortedException {
                 while (!tuple.hasNext() && page.hasNext())
-                    tuple = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), page.next()), Permissions.READ_ONLY)).iterator();
+                    tuple = fetch(page.next());
                 return tuple.hasNext();
             }
 
             @Override
             public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
                 while (!tuple.hasNext() && page.hasNext())
-                    tuple = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), page.next()), Permissions.READ_ONLY)).iterator();
+                    tuple = fetch(page.next());
                 return tuple.next();
             }
 
@@ -156,8 +371,11 @@ public class HeapFile implements DbFile {
 
             @Override
             public void close() {
+                unpin();
                 page = Collections.emptyIterator();
                 tuple = Collections.emptyIterator();
+                ring = null;
+                readAhead = null;
             }
         };
     }
@@ -262,6 +262,34 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Adds the specified tuple to the given slot of the page.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The slot to store it in.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if (isSlotUsed(slot)) throw new DbException("tuple slot already used");
+        if (!t.getTupleDesc().equals(td)) throw new DbException("tupledesc mismatch");
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Returns the tuple in the given slot, or null if the slot is empty.
+     */
+    public Tuple getTuple(int slot) {
+        return isSlotUsed(slot) ? tuples[slot] : null;
+    }
+
+    /**
+     * Returns the number of tuple slots on this page.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     private TransactionId dirty = null;
 
     /**
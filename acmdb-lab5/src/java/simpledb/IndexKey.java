@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * An IndexKey is a key value of the index of a table, as locked by key-range
+ * locking: a lock on a key guards the key and the gap below it, down to the
+ * next smaller key in the index. The key past the last one, guarding the gap
+ * at the end of the index, is represented by a null field.
+ */
+public class IndexKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableId;
+    private final Field key;
+
+    /**
+     * @param tableId the table of the index
+     * @param key     the key value, or null for the end of the index
+     */
+    public IndexKey(int tableId, Field key) {
+        this.tableId = tableId;
+        this.key = key;
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the key value, or null for the end of the index
+     */
+    public Field getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IndexKey && tableId == ((IndexKey) o).tableId && Objects.equals(key, ((IndexKey) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return tableId * 31 + Objects.hashCode(key);
+    }
+
+    public String toString() {
+        return "IndexKey(" + tableId + ", " + (key == null ? "end" : key.toString()) + ")";
+    }
+}
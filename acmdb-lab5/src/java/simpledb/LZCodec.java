@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * LZCodec is a small LZ77 compressor in the spirit of LZ4, used to keep
+ * pages compressed in memory (see {@link CompressedPageCache}). It favours
+ * speed over ratio: matches are found through a single hash table of 4-byte
+ * sequences, with no search for a longer match.
+ * <p>
+ * The output is a series of sequences. Each starts with a token byte whose
+ * high nibble is the number of literals and whose low nibble is the match
+ * length minus 4; a nibble of 15 is followed by more length bytes, each
+ * added to it, up to the first one below 255. Then come the literals, and,
+ * except in the last sequence, the two-byte little-endian distance back to
+ * the match.
+ */
+public class LZCodec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    /**
+     * Compress a byte array.
+     *
+     * @return the compressed bytes; may be longer than the input if it does
+     * not compress
+     */
+    public static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] out = new byte[n + n / 255 + 16];
+        int op = 0;
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int i = 0;
+        while (i + MIN_MATCH <= n) {
+            int seq = readInt(src, i);
+            int h = (seq * 0x9E3779B1) >>> (32 - HASH_BITS);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+                i++;
+                continue;
+            }
+            int len = MIN_MATCH;
+            while (i + len < n && src[ref + len] == src[i + len]) len++;
+            op = writeSequence(out, op, src, anchor, i - anchor, i - ref, len);
+            i += len;
+            anchor = i;
+        }
+        op = writeSequence(out, op, src, anchor, n - anchor, 0, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    /**
+     * Decompress bytes produced by {@link #compress(byte[])}.
+     *
+     * @param src    the compressed bytes
+     * @param length the length of the original data
+     * @throws IllegalArgumentException if src is corrupt
+     */
+    public static byte[] decompress(byte[] src, int length) {
+        byte[] out = new byte[length];
+        int ip = 0, op = 0;
+        try {
+            while (ip < src.length) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == src.length) break;
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int len = token & 0x0F;
+                if (len == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        len += b;
+                    } while (b == 255);
+                }
+                len += MIN_MATCH;
+                int from = op - distance;
+                if (distance == 0 || from < 0) throw new IllegalArgumentException("corrupt match distance");
+                // byte by byte, as a match may overlap the bytes it produces
+                for (int k = 0; k < len; k++) out[op++] = out[from + k];
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("corrupt compressed data", e);
+        }
+        if (op != length) throw new IllegalArgumentException("compressed data has the wrong length");
+        return out;
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int from, int literals,
+                                     int distance, int matchLen) {
+        int match = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+        out[op++] = (byte) (Math.min(literals, 15) << 4 | Math.min(match, 15));
+        if (literals >= 15) op = writeLength(out, op, literals - 15);
+        System.arraycopy(src, from, out, op, literals);
+        op += literals;
+        if (matchLen == 0) return op;
+        out[op++] = (byte) distance;
+        out[op++] = (byte) (distance >>> 8);
+        if (match >= 15) op = writeLength(out, op, match - 15);
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int len) {
+        while (len >= 255) {
+            out[op++] = (byte) 255;
+            len -= 255;
+        }
+        out[op++] = (byte) len;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
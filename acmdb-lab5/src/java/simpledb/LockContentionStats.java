@@ -0,0 +1,409 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LockContentionStats is a snapshot of the lock waits of a LockManager,
+ * taken by {@link LockManager#getContentionStats()}: totals and histograms
+ * of wait times since the lock manager was created or last reset, the most
+ * contended resources, the last deadlock victims and the transactions
+ * waiting now. The figures of each resource are estimates, scaled from a
+ * sample of the waits (see {@link #getSamplePeriod()}).
+ */
+public class LockContentionStats {
+
+    /**
+     * The kinds of locked resources: tables, pages, tuples and index keys.
+     */
+    public static final String[] KINDS = {"table", "page", "tuple", "key"};
+
+    /**
+     * Upper bounds of the buckets of the wait time histograms, in
+     * microseconds; the last bucket holds the longer waits.
+     */
+    public static final long[] BUCKET_BOUNDS_MICROS = {100, 1000, 10000, 100000, 1000000};
+
+    /**
+     * The waits on a resource.
+     */
+    public static class Resource {
+        private final Object resource;
+        private final long waits;
+        private final long waitNanos;
+        private final long maxWaitNanos;
+        private final long deadlocks;
+
+        Resource(Object resource, long waits, long waitNanos, long maxWaitNanos, long deadlocks) {
+            this.resource = resource;
+            this.waits = waits;
+            this.waitNanos = waitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.deadlocks = deadlocks;
+        }
+
+        public Object getResource() {
+            return resource;
+        }
+
+        public long getWaits() {
+            return waits;
+        }
+
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        /**
+         * @return the number of requests on the resource aborted by the
+         * deadlock policy
+         */
+        public long getDeadlocks() {
+            return deadlocks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d waits, %.3f ms total, %.3f ms max, %d deadlocks",
+                    describe(resource), waits, waitNanos / 1e6, maxWaitNanos / 1e6, deadlocks);
+        }
+    }
+
+    /**
+     * A request aborted by the deadlock policy.
+     */
+    public static class Victim {
+        private final TransactionId tid;
+        private final Object resource;
+        private final LockMode mode;
+        private final long waitedNanos;
+        private final long timeMillis;
+
+        Victim(TransactionId tid, Object resource, LockMode mode, long waitedNanos, long timeMillis) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+            this.waitedNanos = waitedNanos;
+            this.timeMillis = timeMillis;
+        }
+
+        public TransactionId getTransactionId() {
+            return tid;
+        }
+
+        public Object getResource() {
+            return resource;
+        }
+
+        public LockMode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return how long the request had waited, or 0 if it was aborted
+         * instead of waiting
+         */
+        public long getWaitedNanos() {
+            return waitedNanos;
+        }
+
+        /**
+         * @return when the request was aborted, as by System.currentTimeMillis()
+         */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tx %d asking %s on %s, after %.3f ms",
+                    tid.getId(), mode, describe(resource), waitedNanos / 1e6);
+        }
+    }
+
+    /**
+     * A request waiting for a lock.
+     */
+    public static class Waiter {
+        private final TransactionId tid;
+        private final Object resource;
+        private final LockMode mode;
+        private final long waitedNanos;
+        private final List<TransactionId> blockers;
+
+        Waiter(TransactionId tid, Object resource, LockMode mode, long waitedNanos, List<TransactionId> blockers) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+            this.waitedNanos = waitedNanos;
+            this.blockers = Collections.unmodifiableList(new ArrayList<>(blockers));
+        }
+
+        public TransactionId getTransactionId() {
+            return tid;
+        }
+
+        public Object getResource() {
+            return resource;
+        }
+
+        public LockMode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return how long the request has waited so far
+         */
+        public long getWaitedNanos() {
+            return waitedNanos;
+        }
+
+        /**
+         * @return the transactions the request waits for: the holders of
+         * incompatible locks and the incompatible requests queued before it
+         */
+        public List<TransactionId> getBlockers() {
+            return blockers;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tx %d waits %.3f ms for %s on %s",
+                    tid.getId(), waitedNanos / 1e6, mode, describe(resource));
+        }
+    }
+
+    private final int samplePeriod;
+    private final long waits;
+    private final long waitNanos;
+    private final long maxWaitNanos;
+    private final long timeouts;
+    private final long deadlocks;
+    private final long[][] histograms;
+    private final List<Resource> resources;
+    private final List<Victim> victims;
+    private final List<Waiter> waiters;
+
+    LockContentionStats(int samplePeriod, long waits, long waitNanos, long maxWaitNanos, long timeouts,
+                        long deadlocks, long[][] histograms, List<Resource> resources, List<Victim> victims,
+                        List<Waiter> waiters) {
+        this.samplePeriod = samplePeriod;
+        this.waits = waits;
+        this.waitNanos = waitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.timeouts = timeouts;
+        this.deadlocks = deadlocks;
+        this.histograms = histograms;
+        List<Resource> sorted = new ArrayList<>(resources);
+        sorted.sort((a, b) -> Long.compare(b.waitNanos, a.waitNanos));
+        this.resources = Collections.unmodifiableList(sorted);
+        this.victims = Collections.unmodifiableList(new ArrayList<>(victims));
+        this.waiters = Collections.unmodifiableList(new ArrayList<>(waiters));
+    }
+
+    /**
+     * @return the index in {@link #KINDS} of the kind of a resource
+     */
+    static int kindOf(Object resource) {
+        if (resource instanceof PageId) return 1;
+        if (resource instanceof RecordId) return 2;
+        if (resource instanceof IndexKey) return 3;
+        return 0;
+    }
+
+    /**
+     * @return the bucket of the wait time histograms holding a wait
+     */
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int i = 0;
+        while (i < BUCKET_BOUNDS_MICROS.length && micros >= BUCKET_BOUNDS_MICROS[i]) i++;
+        return i;
+    }
+
+    /**
+     * @return a readable name of a locked resource
+     */
+    public static String describe(Object resource) {
+        if (resource instanceof Integer) return "table " + resource;
+        if (resource instanceof PageId) {
+            PageId pid = (PageId) resource;
+            return BufferPoolStats.categoryOf(pid) + " page " + pid.getTableId() + ":" + pid.pageNumber();
+        }
+        if (resource instanceof RecordId) {
+            RecordId rid = (RecordId) resource;
+            return "tuple " + rid.getPageId().getTableId() + ":" + rid.getPageId().pageNumber()
+                    + ":" + rid.tupleno();
+        }
+        return String.valueOf(resource);
+    }
+
+    /**
+     * @return the sampling period of the figures of each resource: one in
+     * every so many waits is attributed to its resource, counting for as
+     * many
+     */
+    public int getSamplePeriod() {
+        return samplePeriod;
+    }
+
+    /**
+     * @return the number of lock requests that waited, whether they were
+     * granted, aborted or timed out
+     */
+    public long getWaits() {
+        return waits;
+    }
+
+    /**
+     * @return the total time spent waiting for locks, in nanoseconds
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return the mean time of a lock wait, in milliseconds
+     */
+    public double getAverageWaitMillis() {
+        return waits == 0 ? 0 : waitNanos / 1e6 / waits;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return the number of lock requests aborted by the deadlock policy
+     */
+    public long getDeadlocks() {
+        return deadlocks;
+    }
+
+    /**
+     * @return the histogram of the wait times of the resources of a kind:
+     * the number of waits in each bucket of {@link #BUCKET_BOUNDS_MICROS}
+     * @throws IllegalArgumentException if kind is not one of {@link #KINDS}
+     */
+    public long[] getHistogram(String kind) {
+        for (int i = 0; i < KINDS.length; i++)
+            if (KINDS[i].equals(kind)) return histograms[i].clone();
+        throw new IllegalArgumentException("unknown resource kind " + kind);
+    }
+
+    /**
+     * @return the resources waited for, the longest total wait first
+     */
+    public List<Resource> getResources() {
+        return resources;
+    }
+
+    /**
+     * @return the last requests aborted by the deadlock policy, the oldest
+     * first
+     */
+    public List<Victim> getVictims() {
+        return victims;
+    }
+
+    /**
+     * @return the requests waiting when the snapshot was taken
+     */
+    public List<Waiter> getWaiters() {
+        return waiters;
+    }
+
+    /**
+     * Chains of waiting transactions: each starts at a waiting transaction
+     * no other waiter waits for, and goes on to the first transaction it
+     * waits for, until a transaction that is not waiting or, for a
+     * deadlock, one already in the chain. Waiters in cycles only start a
+     * chain of their own.
+     *
+     * @return the chains, as lists of transactions
+     */
+    public List<List<TransactionId>> getWaitChains() {
+        Map<TransactionId, Waiter> byTid = new HashMap<>();
+        Set<TransactionId> waitedFor = new HashSet<>();
+        for (Waiter waiter : waiters) {
+            byTid.put(waiter.tid, waiter);
+            waitedFor.addAll(waiter.blockers);
+        }
+        List<List<TransactionId>> chains = new ArrayList<>();
+        Set<TransactionId> seen = new HashSet<>();
+        for (int pass = 0; pass < 2; pass++) {
+            for (Waiter waiter : waiters) {
+                if (seen.contains(waiter.tid) || pass == 0 && waitedFor.contains(waiter.tid)) continue;
+                List<TransactionId> chain = new ArrayList<>();
+                TransactionId tid = waiter.tid;
+                while (tid != null) {
+                    boolean repeated = chain.contains(tid);
+                    chain.add(tid);
+                    seen.add(tid);
+                    Waiter next = byTid.get(tid);
+                    tid = repeated || next == null || next.blockers.isEmpty() ? null : next.blockers.get(0);
+                }
+                chains.add(chain);
+            }
+        }
+        return chains;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("lock waits %d (%.3f ms avg, %.3f ms max), timeouts %d, deadlock aborts %d%n",
+                waits, getAverageWaitMillis(), maxWaitNanos / 1e6, timeouts, deadlocks));
+        sb.append(String.format("%-8s", "wait"));
+        for (long bound : BUCKET_BOUNDS_MICROS) sb.append(String.format(" %8s", "<" + formatMicros(bound)));
+        sb.append(String.format(" %8s%n", ">=" + formatMicros(BUCKET_BOUNDS_MICROS[BUCKET_BOUNDS_MICROS.length - 1])));
+        for (int i = 0; i < KINDS.length; i++) {
+            sb.append(String.format("%-8s", KINDS[i]));
+            for (long count : histograms[i]) sb.append(String.format(" %8d", count));
+            sb.append(String.format("%n"));
+        }
+        if (!resources.isEmpty()) {
+            sb.append(String.format("most waited for (1 in %d waits sampled):%n", samplePeriod));
+            for (Resource resource : resources.subList(0, Math.min(10, resources.size())))
+                sb.append("  ").append(resource).append(String.format("%n"));
+        }
+        if (!victims.isEmpty()) {
+            sb.append(String.format("deadlock victims:%n"));
+            for (Victim victim : victims) sb.append("  ").append(victim).append(String.format("%n"));
+        }
+        if (!waiters.isEmpty()) {
+            Map<TransactionId, Waiter> byTid = new HashMap<>();
+            for (Waiter waiter : waiters) byTid.put(waiter.tid, waiter);
+            sb.append(String.format("waiting:%n"));
+            for (List<TransactionId> chain : getWaitChains()) {
+                sb.append(" ");
+                for (int i = 0; i < chain.size(); i++) {
+                    TransactionId tid = chain.get(i);
+                    sb.append(" tx ").append(tid.getId());
+                    Waiter waiter = byTid.get(tid);
+                    if (waiter != null && i < chain.size() - 1)
+                        sb.append(" (").append(waiter.mode).append(" on ").append(describe(waiter.resource)).append(") ->");
+                }
+                sb.append(String.format("%n"));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatMicros(long micros) {
+        return micros >= 1000000 ? micros / 1000000 + "s" : micros >= 1000 ? micros / 1000 + "ms" : micros + "us";
+    }
+}
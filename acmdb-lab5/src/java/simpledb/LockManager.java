@@ -0,0 +1,609 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockManager grants transactions locks on resources, such as pages, in the
+ * modes of {@link LockMode}. Each locked resource has a lock head with the
+ * granted locks and a FIFO queue of waiting requests: a request is granted
+ * at once only if it is compatible with the granted locks and nobody is
+ * waiting, so a stream of readers cannot starve a writer. A holder asking
+ * for a stronger mode (an upgrade) goes to the front of the queue. Locks
+ * are handed to waiters by the transaction releasing them.
+ * <p>
+ * The lock table is split into stripes, each guarded by its own monitor;
+ * lock heads are created on first use and dropped when the last lock on
+ * the resource is released. The locks held by each transaction are indexed,
+ * so {@link #releaseAll(TransactionId)} costs in proportion to them.
+ * <p>
+ * Deadlocks are handled as chosen by a {@link DeadlockPolicy}
+ * (-Dsimpledb.LockManager.deadlockPolicy=detect|wait-die|wound-wait). With
+ * DETECT, the waits-for graph is made of the requests of the waiting
+ * transactions, which are kept up to date as they wait and are granted,
+ * and the incompatible locks ahead of them; a background thread searches
+ * it every simpledb.LockManager.detectIntervalMs milliseconds, and only
+ * while transactions wait. No policy takes a global monitor on the lock
+ * request path. Waits can also be bounded: a transaction that waits longer
+ * than -Dsimpledb.LockManager.timeoutMs milliseconds is aborted. An aborted
+ * request throws {@link TransactionAbortedException}.
+ * <p>
+ * Lock waits are profiled: {@link #getContentionStats()} reports how often
+ * and how long transactions waited, on which resources, the deadlock
+ * victims and who waits for whom now.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Lock wait timeout in milliseconds; 0 waits until the lock is granted
+     * or a deadlock is found. Override with -Dsimpledb.LockManager.timeoutMs.
+     */
+    public static final long DEFAULT_TIMEOUT_MS = 0;
+
+    /**
+     * Number of stripes of the lock table. Override with
+     * -Dsimpledb.LockManager.stripes; rounded up to a power of two.
+     */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * Deadlock policy, and the interval of the detector of the DETECT policy
+     * in milliseconds. Override with -Dsimpledb.LockManager.deadlockPolicy
+     * and simpledb.LockManager.detectIntervalMs.
+     */
+    public static final DeadlockPolicy DEFAULT_DEADLOCK_POLICY = DeadlockPolicy.DETECT;
+    public static final long DEFAULT_DETECT_INTERVAL_MS = 10;
+
+    /**
+     * One in this many lock waits is attributed to its resource by the
+     * contention profiler; the totals count every wait. Override with
+     * -Dsimpledb.LockManager.profileSamplePeriod.
+     */
+    public static final int DEFAULT_PROFILE_SAMPLE_PERIOD = 4;
+
+    private static class Request {
+        final TransactionId tid;
+        final Object resource;
+        final LockMode mode;
+        final Thread thread = Thread.currentThread();
+        final long since = System.nanoTime();
+        volatile boolean granted = false;
+        // set to abort the waiting transaction
+        volatile boolean aborted = false;
+
+        Request(TransactionId tid, Object resource, LockMode mode) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+        }
+    }
+
+    private static class LockHead {
+        final Map<TransactionId, LockMode> granted = new HashMap<>(4);
+        final ArrayDeque<Request> waiting = new ArrayDeque<>();
+
+        boolean isEmpty() {
+            return granted.isEmpty() && waiting.isEmpty();
+        }
+    }
+
+    private static class Stripe {
+        final Map<Object, LockHead> heads = new HashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    private final long timeoutNanos;
+    private final DeadlockPolicy policy;
+    private final long detectIntervalMillis;
+    private final Map<TransactionId, Map<Object, LockMode>> held = new ConcurrentHashMap<>();
+    // the request each blocked transaction waits on: the nodes of the waits-for graph
+    private final Map<TransactionId, Request> waits = new ConcurrentHashMap<>();
+    // transactions wounded while not waiting (WOUND_WAIT)
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean detectorRunning = new AtomicBoolean(false);
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final LockProfiler profiler;
+
+    /**
+     * Creates a LockManager configured by the system properties
+     * simpledb.LockManager.timeoutMs, stripes, deadlockPolicy,
+     * detectIntervalMs and profileSamplePeriod.
+     */
+    public LockManager() {
+        this(Long.getLong("simpledb.LockManager.timeoutMs", DEFAULT_TIMEOUT_MS),
+                Integer.getInteger("simpledb.LockManager.stripes", DEFAULT_STRIPES),
+                DeadlockPolicy.parse(System.getProperty("simpledb.LockManager.deadlockPolicy",
+                        DEFAULT_DEADLOCK_POLICY.name())),
+                Long.getLong("simpledb.LockManager.detectIntervalMs", DEFAULT_DETECT_INTERVAL_MS),
+                Integer.getInteger("simpledb.LockManager.profileSamplePeriod", DEFAULT_PROFILE_SAMPLE_PERIOD));
+    }
+
+    /**
+     * Creates a LockManager detecting deadlocks in the background.
+     *
+     * @param timeoutMillis lock wait timeout, or 0 for none
+     * @param numStripes    number of stripes of the lock table
+     */
+    public LockManager(long timeoutMillis, int numStripes) {
+        this(timeoutMillis, numStripes, DeadlockPolicy.DETECT, DEFAULT_DETECT_INTERVAL_MS);
+    }
+
+    /**
+     * @param timeoutMillis        lock wait timeout, or 0 for none
+     * @param numStripes           number of stripes of the lock table
+     * @param policy               how to handle deadlocks
+     * @param detectIntervalMillis time between two searches for deadlocks,
+     *                             with the DETECT policy
+     */
+    public LockManager(long timeoutMillis, int numStripes, DeadlockPolicy policy, long detectIntervalMillis) {
+        this(timeoutMillis, numStripes, policy, detectIntervalMillis, DEFAULT_PROFILE_SAMPLE_PERIOD);
+    }
+
+    /**
+     * @param timeoutMillis        lock wait timeout, or 0 for none
+     * @param numStripes           number of stripes of the lock table
+     * @param policy               how to handle deadlocks
+     * @param detectIntervalMillis time between two searches for deadlocks,
+     *                             with the DETECT policy
+     * @param profileSamplePeriod  attribute one in this many lock waits to
+     *                             its resource in the contention profile
+     */
+    public LockManager(long timeoutMillis, int numStripes, DeadlockPolicy policy, long detectIntervalMillis,
+                       int profileSamplePeriod) {
+        int n = 1;
+        while (n < numStripes) n <<= 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe();
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        this.policy = policy;
+        this.detectIntervalMillis = Math.max(1, detectIntervalMillis);
+        profiler = new LockProfiler(profileSamplePeriod);
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    private Stripe stripeOf(Object resource) {
+        return stripes[stripeIndex(resource)];
+    }
+
+    private int stripeIndex(Object resource) {
+        int h = resource.hashCode();
+        return (h ^ h >>> 16) & (stripes.length - 1);
+    }
+
+    /**
+     * Lock a resource, waiting as long as needed. Does nothing if the
+     * transaction holds the resource in a mode covering the one asked for,
+     * and upgrades its lock if it holds a weaker one.
+     *
+     * @throws TransactionAbortedException if waiting would deadlock, the
+     *                                     wait times out or the thread is
+     *                                     interrupted
+     */
+    public void acquire(TransactionId tid, Object resource, LockMode mode) throws TransactionAbortedException {
+        if (!wounded.isEmpty() && wounded.contains(tid)) throw new TransactionAbortedException();
+        Stripe stripe = stripeOf(resource);
+        Request req;
+        synchronized (stripe) {
+            LockHead head = stripe.heads.get(resource);
+            if (head == null) {
+                head = new LockHead();
+                stripe.heads.put(resource, head);
+            }
+            LockMode current = head.granted.get(tid);
+            if (current != null && current.covers(mode)) return;
+            LockMode wanted = current == null ? mode : current.combine(mode);
+            if ((current != null || head.waiting.isEmpty()) && grantable(head, tid, wanted)) {
+                grant(head, resource, tid, wanted);
+                return;
+            }
+            req = new Request(tid, resource, wanted);
+            if (current != null) head.waiting.addFirst(req);
+            else head.waiting.addLast(req);
+            if (!admitWait(head, req)) {
+                head.waiting.remove(req);
+                deadlocks.incrementAndGet();
+                profiler.deadlock(tid, resource, wanted, 0);
+                throw new TransactionAbortedException();
+            }
+            waits.put(tid, req);
+        }
+        if (policy == DeadlockPolicy.DETECT) startDetector();
+        await(stripe, req);
+    }
+
+    /**
+     * Apply the timestamp-based policies to a request just queued; called
+     * with the stripe locked.
+     *
+     * @return false if the requester must abort instead of waiting
+     */
+    private boolean admitWait(LockHead head, Request req) {
+        if (policy == DeadlockPolicy.DETECT) return true;
+        long age = req.tid.getId();
+        List<Request> behind = new ArrayList<>();
+        boolean after = false;
+        for (Request other : head.waiting) {
+            if (after && !other.tid.equals(req.tid) && !req.mode.compatibleWith(other.mode)) behind.add(other);
+            after |= other == req;
+        }
+        if (policy == DeadlockPolicy.WAIT_DIE) {
+            for (TransactionId blocker : blockers(head, req))
+                if (blocker.getId() < age) return false;
+            // an upgrade jumps the queue: younger waiters behind it die instead
+            for (Request other : behind)
+                if (other.tid.getId() > age) abort(other);
+        } else {
+            for (Request other : behind)
+                if (other.tid.getId() < age) return false;
+            for (TransactionId blocker : blockers(head, req))
+                if (blocker.getId() > age) wound(blocker);
+        }
+        return true;
+    }
+
+    private void wound(TransactionId tid) {
+        Request req = waits.get(tid);
+        if (req != null) abort(req);
+        else if (held.containsKey(tid)) wounded.add(tid);
+    }
+
+    private void abort(Request req) {
+        req.aborted = true;
+        LockSupport.unpark(req.thread);
+    }
+
+    /**
+     * Lock a resource only if that needs no wait.
+     *
+     * @return true if the transaction holds the lock now
+     */
+    public boolean tryAcquire(TransactionId tid, Object resource, LockMode mode) {
+        Stripe stripe = stripeOf(resource);
+        synchronized (stripe) {
+            LockHead head = stripe.heads.get(resource);
+            LockMode current = head == null ? null : head.granted.get(tid);
+            if (current != null && current.covers(mode)) return true;
+            LockMode wanted = current == null ? mode : current.combine(mode);
+            if (head == null) {
+                head = new LockHead();
+                stripe.heads.put(resource, head);
+            } else if (!(current != null || head.waiting.isEmpty()) || !grantable(head, tid, wanted)) {
+                return false;
+            }
+            grant(head, resource, tid, wanted);
+            return true;
+        }
+    }
+
+    /**
+     * Release the lock of a transaction on a resource, if it holds one.
+     */
+    public void release(TransactionId tid, Object resource) {
+        Map<Object, LockMode> mine = held.get(tid);
+        if (mine != null) mine.remove(resource);
+        unlock(tid, resource);
+    }
+
+    /**
+     * Release all locks of a transaction, in bulk: its locks are grouped by
+     * stripe, and each stripe is locked once.
+     */
+    public void releaseAll(TransactionId tid) {
+        wounded.remove(tid);
+        Map<Object, LockMode> mine = held.remove(tid);
+        if (mine == null || mine.isEmpty()) return;
+        Object[] resources = mine.keySet().toArray();
+        if (resources.length == 1) {
+            unlock(tid, resources[0]);
+            return;
+        }
+        // counting sort by stripe; ends[s] is where the locks of stripe s end
+        int[] index = new int[resources.length];
+        int[] ends = new int[stripes.length];
+        for (int i = 0; i < resources.length; i++) ends[index[i] = stripeIndex(resources[i])]++;
+        for (int s = 1; s < ends.length; s++) ends[s] += ends[s - 1];
+        Object[] sorted = new Object[resources.length];
+        for (int i = resources.length - 1; i >= 0; i--) sorted[--ends[index[i]]] = resources[i];
+        // now ends[s] is where the locks of stripe s start
+        for (int s = 0; s < stripes.length; s++) {
+            int end = s + 1 < stripes.length ? ends[s + 1] : sorted.length;
+            if (end == ends[s]) continue;
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                for (int i = ends[s]; i < end; i++) unlock(stripe, tid, sorted[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the mode the transaction holds the resource in, or null
+     */
+    public LockMode getLockMode(TransactionId tid, Object resource) {
+        Map<Object, LockMode> mine = held.get(tid);
+        return mine == null ? null : mine.get(resource);
+    }
+
+    public boolean holdsLock(TransactionId tid, Object resource) {
+        return getLockMode(tid, resource) != null;
+    }
+
+    /**
+     * Fast path of {@link #acquire(TransactionId, Object, LockMode)} for a
+     * transaction asking again for a lock it holds: looks in the locks of the
+     * transaction only, without locking a stripe or allocating.
+     *
+     * @return true if the transaction holds the resource in a mode covering
+     * the given one, so that acquiring it would do nothing
+     */
+    public boolean holds(TransactionId tid, Object resource, LockMode mode) {
+        if (!wounded.isEmpty() && wounded.contains(tid)) return false;
+        LockMode current = getLockMode(tid, resource);
+        return current != null && current.covers(mode);
+    }
+
+    /**
+     * @return the resources the transaction holds locks on, and their modes
+     */
+    public Map<Object, LockMode> getLocks(TransactionId tid) {
+        Map<Object, LockMode> mine = held.get(tid);
+        return mine == null ? Collections.<Object, LockMode>emptyMap() : new HashMap<>(mine);
+    }
+
+    /**
+     * @return the number of transactions waiting for a lock
+     */
+    public int getWaitingCount() {
+        return waits.size();
+    }
+
+    /**
+     * @return the number of lock requests aborted by the deadlock policy
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * @return the number of resources with granted or requested locks
+     */
+    public int getLockedResourceCount() {
+        int n = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                n += stripe.heads.size();
+            }
+        return n;
+    }
+
+    /**
+     * @return a snapshot of the lock waits so far and of the transactions
+     * waiting now
+     */
+    public LockContentionStats getContentionStats() {
+        List<LockContentionStats.Waiter> waiters = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Request req : waits.values())
+            if (!req.granted && !req.aborted)
+                waiters.add(new LockContentionStats.Waiter(req.tid, req.resource, req.mode, now - req.since,
+                        blockers(req)));
+        return profiler.snapshot(waiters);
+    }
+
+    /**
+     * Clear the lock wait profile, as reported by {@link #getContentionStats()}.
+     */
+    public void resetContentionStats() {
+        profiler.reset();
+    }
+
+    private void unlock(TransactionId tid, Object resource) {
+        Stripe stripe = stripeOf(resource);
+        synchronized (stripe) {
+            unlock(stripe, tid, resource);
+        }
+    }
+
+    // called with the stripe locked
+    private void unlock(Stripe stripe, TransactionId tid, Object resource) {
+        LockHead head = stripe.heads.get(resource);
+        if (head == null || head.granted.remove(tid) == null) return;
+        grantWaiters(head, resource);
+        if (head.isEmpty()) stripe.heads.remove(resource);
+    }
+
+    private static boolean grantable(LockHead head, TransactionId tid, LockMode mode) {
+        for (Map.Entry<TransactionId, LockMode> entry : head.granted.entrySet())
+            if (!entry.getKey().equals(tid) && !mode.compatibleWith(entry.getValue())) return false;
+        return true;
+    }
+
+    private void grant(LockHead head, Object resource, TransactionId tid, LockMode mode) {
+        head.granted.put(tid, mode);
+        held.computeIfAbsent(tid, t -> new ConcurrentHashMap<>()).put(resource, mode);
+    }
+
+    // hand the lock to the waiters at the front of the queue; called with the stripe locked
+    private void grantWaiters(LockHead head, Object resource) {
+        while (!head.waiting.isEmpty()) {
+            Request req = head.waiting.peekFirst();
+            if (!grantable(head, req.tid, req.mode)) return;
+            head.waiting.pollFirst();
+            grant(head, resource, req.tid, req.mode);
+            req.granted = true;
+            LockSupport.unpark(req.thread);
+        }
+    }
+
+    private void await(Stripe stripe, Request req) throws TransactionAbortedException {
+        try {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!req.granted) {
+                if (req.aborted && cancel(stripe, req)) {
+                    deadlocks.incrementAndGet();
+                    profiler.deadlock(req.tid, req.resource, req.mode, System.nanoTime() - req.since);
+                    throw new TransactionAbortedException();
+                }
+                if (timeoutNanos == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        if (cancel(stripe, req)) {
+                            profiler.timedOut();
+                            throw new TransactionAbortedException();
+                        }
+                        break;
+                    }
+                    LockSupport.parkNanos(this, left);
+                }
+                if (Thread.interrupted() && cancel(stripe, req)) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+            }
+        } finally {
+            waits.remove(req.tid);
+            profiler.waited(req.resource, System.nanoTime() - req.since);
+        }
+    }
+
+    /**
+     * Withdraw a waiting request.
+     *
+     * @return false if it was granted meanwhile
+     */
+    private boolean cancel(Stripe stripe, Request req) {
+        synchronized (stripe) {
+            if (req.granted) return false;
+            LockHead head = stripe.heads.get(req.resource);
+            head.waiting.remove(req);
+            // the requests behind it may be grantable now
+            grantWaiters(head, req.resource);
+            if (head.isEmpty()) stripe.heads.remove(req.resource);
+            return true;
+        }
+    }
+
+    private void startDetector() {
+        if (!detectorRunning.compareAndSet(false, true)) return;
+        Thread t = new Thread(this::detectLoop, "simpledb-deadlock-detector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // runs while transactions wait
+    private void detectLoop() {
+        while (true) {
+            try {
+                Thread.sleep(detectIntervalMillis);
+            } catch (InterruptedException e) {
+                detectorRunning.set(false);
+                return;
+            }
+            if (waits.isEmpty()) {
+                detectorRunning.set(false);
+                // a transaction may have started waiting meanwhile
+                if (waits.isEmpty() || !detectorRunning.compareAndSet(false, true)) return;
+            }
+            detectDeadlocks();
+        }
+    }
+
+    /**
+     * Search the waits-for graph for cycles and abort the youngest
+     * transaction of each.
+     *
+     * @return the number of transactions aborted
+     */
+    int detectDeadlocks() {
+        Map<TransactionId, List<TransactionId>> graph = new HashMap<>();
+        for (Request req : waits.values())
+            if (!req.granted && !req.aborted) graph.put(req.tid, blockers(req));
+        int aborted = 0;
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId victim = cycle.get(0);
+            for (TransactionId tid : cycle)
+                if (tid.getId() > victim.getId()) victim = tid;
+            Request req = waits.get(victim);
+            if (req != null) abort(req);
+            graph.remove(victim);
+            aborted++;
+        }
+        return aborted;
+    }
+
+    private static List<TransactionId> findCycle(Map<TransactionId, List<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) continue;
+            // iterative DFS; path holds the nodes on the stack
+            List<TransactionId> path = new ArrayList<>();
+            List<Iterator<TransactionId>> edges = new ArrayList<>();
+            Set<TransactionId> onPath = new HashSet<>();
+            path.add(start);
+            onPath.add(start);
+            edges.add(graph.get(start).iterator());
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = edges.get(edges.size() - 1);
+                if (!it.hasNext()) {
+                    TransactionId node = path.remove(path.size() - 1);
+                    edges.remove(edges.size() - 1);
+                    onPath.remove(node);
+                    done.add(node);
+                    continue;
+                }
+                TransactionId next = it.next();
+                if (onPath.contains(next)) return new ArrayList<>(path.subList(path.indexOf(next), path.size()));
+                if (done.contains(next) || !graph.containsKey(next)) continue;
+                path.add(next);
+                onPath.add(next);
+                edges.add(graph.get(next).iterator());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the transactions a waiting request waits for: the holders of
+     * incompatible locks and the incompatible requests queued before it
+     */
+    private List<TransactionId> blockers(Request req) {
+        Stripe stripe = stripeOf(req.resource);
+        synchronized (stripe) {
+            LockHead head = stripe.heads.get(req.resource);
+            if (head == null || req.granted) return new ArrayList<>();
+            return blockers(head, req);
+        }
+    }
+
+    // called with the stripe locked
+    private static List<TransactionId> blockers(LockHead head, Request req) {
+        List<TransactionId> blockers = new ArrayList<>();
+        for (Map.Entry<TransactionId, LockMode> entry : head.granted.entrySet())
+            if (!entry.getKey().equals(req.tid) && !req.mode.compatibleWith(entry.getValue()))
+                blockers.add(entry.getKey());
+        for (Request ahead : head.waiting) {
+            if (ahead == req) break;
+            if (!ahead.tid.equals(req.tid) && !req.mode.compatibleWith(ahead.mode)) blockers.add(ahead.tid);
+        }
+        return blockers;
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+/**
+ * The modes a lock of the {@link LockManager} can be held in. Besides
+ * shared and exclusive locks, there are the intention modes of
+ * multi-granularity locking: a transaction locking a page or a tuple first
+ * locks the table (and for a tuple, the page) in the matching intention
+ * mode, so that a lock on the whole table conflicts with the finer locks
+ * below it.
+ */
+public enum LockMode {
+    /** Intention shared (IS): shared locks are taken below. */
+    INTENTION_SHARED,
+    /** Intention exclusive (IX): exclusive locks are taken below. */
+    INTENTION_EXCLUSIVE,
+    /** Shared (S): for reading; compatible with other shared locks. */
+    SHARED,
+    /** Shared and intention exclusive (SIX): reading all, writing some below. */
+    SHARED_INTENTION_EXCLUSIVE,
+    /** Exclusive (X): for writing; compatible with nothing. */
+    EXCLUSIVE;
+
+    // indexed by ordinal: IS, IX, S, SIX, X
+    private static final boolean[][] COMPATIBLE = {
+            {true, true, true, true, false},
+            {true, true, false, false, false},
+            {true, false, true, false, false},
+            {true, false, false, false, false},
+            {false, false, false, false, false},
+    };
+
+    private static final boolean[][] COVERS = {
+            {true, false, false, false, false},
+            {true, true, false, false, false},
+            {true, false, true, false, false},
+            {true, true, true, true, false},
+            {true, true, true, true, true},
+    };
+
+    /**
+     * @return true if two transactions may hold a resource in this mode and
+     * in the other at the same time
+     */
+    public boolean compatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding a lock in this mode grants everything the
+     * other mode does
+     */
+    public boolean covers(LockMode other) {
+        return COVERS[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode covering both this mode and the other, i.e.
+     * the mode a holder of this mode upgrades to when it asks for the other
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) return this;
+        if (other.covers(this)) return other;
+        // S and IX are the only modes neither of which covers the other
+        return SHARED_INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * @return the intention mode to lock the parent of a resource in before
+     * locking the resource in this mode
+     */
+    public LockMode intention() {
+        return this == INTENTION_SHARED || this == SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+    }
+}
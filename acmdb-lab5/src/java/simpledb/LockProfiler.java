@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LockProfiler records the lock waits of a {@link LockManager}: the number
+ * and the duration of waits, in histograms by kind of resource, the waits
+ * and deadlock aborts of each resource, and the last deadlock victims.
+ * <p>
+ * Only requests that wait are recorded, so granting a lock at once costs
+ * nothing more. The counters and histograms count every wait; the waits of
+ * each resource are sampled, one in every samplePeriod waits being
+ * attributed to its resource with the weight of samplePeriod, and at most
+ * MAX_RESOURCES resources are tracked.
+ *
+ * @Threadsafe
+ */
+class LockProfiler {
+
+    /**
+     * Number of resources whose waits are tracked; waits on further ones
+     * are counted in the totals only.
+     */
+    static final int MAX_RESOURCES = 4096;
+
+    /**
+     * Number of deadlock victims remembered.
+     */
+    static final int MAX_VICTIMS = 32;
+
+    static class ResourceCounters {
+        final AtomicLong waits = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLong deadlocks = new AtomicLong();
+    }
+
+    private final int samplePeriod;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLongArray[] histograms = new AtomicLongArray[LockContentionStats.KINDS.length];
+    private final Map<Object, ResourceCounters> resources = new ConcurrentHashMap<>();
+    private final ArrayDeque<LockContentionStats.Victim> victims = new ArrayDeque<>();
+
+    /**
+     * @param samplePeriod attribute one in every samplePeriod waits to its
+     *                     resource
+     */
+    LockProfiler(int samplePeriod) {
+        this.samplePeriod = Math.max(1, samplePeriod);
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new AtomicLongArray(LockContentionStats.BUCKET_BOUNDS_MICROS.length + 1);
+    }
+
+    int getSamplePeriod() {
+        return samplePeriod;
+    }
+
+    /**
+     * Record a finished wait, whether the lock was granted or not.
+     */
+    void waited(Object resource, long nanos) {
+        waits.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+        max(maxWaitNanos, nanos);
+        histograms[LockContentionStats.kindOf(resource)].incrementAndGet(LockContentionStats.bucketOf(nanos));
+        if (sequence.getAndIncrement() % samplePeriod != 0) return;
+        ResourceCounters counters = countersOf(resource);
+        if (counters == null) return;
+        counters.waits.addAndGet(samplePeriod);
+        counters.waitNanos.addAndGet(nanos * samplePeriod);
+        max(counters.maxWaitNanos, nanos);
+    }
+
+    void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * Record the abort of a request by the deadlock policy.
+     *
+     * @param waitedNanos how long the victim had waited, 0 if it did not
+     */
+    void deadlock(TransactionId tid, Object resource, LockMode mode, long waitedNanos) {
+        deadlocks.incrementAndGet();
+        ResourceCounters counters = countersOf(resource);
+        if (counters != null) counters.deadlocks.incrementAndGet();
+        LockContentionStats.Victim victim = new LockContentionStats.Victim(tid, resource, mode,
+                waitedNanos, System.currentTimeMillis());
+        synchronized (victims) {
+            if (victims.size() == MAX_VICTIMS) victims.pollFirst();
+            victims.addLast(victim);
+        }
+    }
+
+    private ResourceCounters countersOf(Object resource) {
+        ResourceCounters counters = resources.get(resource);
+        if (counters != null || resources.size() >= MAX_RESOURCES) return counters;
+        return resources.computeIfAbsent(resource, r -> new ResourceCounters());
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset() {
+        waits.set(0);
+        waitNanos.set(0);
+        maxWaitNanos.set(0);
+        timeouts.set(0);
+        deadlocks.set(0);
+        for (AtomicLongArray histogram : histograms)
+            for (int i = 0; i < histogram.length(); i++) histogram.set(i, 0);
+        resources.clear();
+        synchronized (victims) {
+            victims.clear();
+        }
+    }
+
+    /**
+     * @param waiters the requests waiting now
+     */
+    LockContentionStats snapshot(List<LockContentionStats.Waiter> waiters) {
+        long[][] counts = new long[histograms.length][];
+        for (int i = 0; i < histograms.length; i++) {
+            counts[i] = new long[histograms[i].length()];
+            for (int j = 0; j < counts[i].length; j++) counts[i][j] = histograms[i].get(j);
+        }
+        List<LockContentionStats.Resource> hot = new ArrayList<>();
+        for (Map.Entry<Object, ResourceCounters> entry : resources.entrySet()) {
+            ResourceCounters c = entry.getValue();
+            hot.add(new LockContentionStats.Resource(entry.getKey(), c.waits.get(), c.waitNanos.get(),
+                    c.maxWaitNanos.get(), c.deadlocks.get()));
+        }
+        List<LockContentionStats.Victim> recent;
+        synchronized (victims) {
+            recent = new ArrayList<>(victims);
+        }
+        return new LockContentionStats(samplePeriod, waits.get(), waitNanos.get(), maxWaitNanos.get(),
+                timeouts.get(), deadlocks.get(), counts, hot, recent, waiters);
+    }
+}
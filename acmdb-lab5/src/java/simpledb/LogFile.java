@@ -476,6 +476,7 @@ public class LogFile {
         extensive recovery.)
     */
     public synchronized void shutdown() {
+        Database.getBufferPool().saveHotPages();
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
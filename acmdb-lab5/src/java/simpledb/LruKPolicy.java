@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LruKPolicy evicts the page whose K-th most recent reference lies furthest in
+ * the past (its "backward K-distance", see O'Neil et al., The LRU-K Page
+ * Replacement Algorithm). Pages referenced fewer than K times have an
+ * infinite distance and go first, oldest last reference first, so a single
+ * pass over a large table cannot push out pages that are used repeatedly.
+ *
+ * @see ReplacementPolicy
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    private static class History implements Comparable<History> {
+        final PageId pid;
+        final long seq;
+        final long[] times; // ring buffer of the last k reference times
+        int count = 0;
+
+        History(PageId pid, long seq, int k) {
+            this.pid = pid;
+            this.seq = seq;
+            this.times = new long[k];
+        }
+
+        void reference(long time) {
+            times[count % times.length] = time;
+            count++;
+        }
+
+        boolean full() {
+            return count >= times.length;
+        }
+
+        long last() {
+            return times[(count - 1) % times.length];
+        }
+
+        long kth() {
+            return times[count % times.length];
+        }
+
+        @Override
+        public int compareTo(History o) {
+            if (full() != o.full()) return full() ? 1 : -1;
+            int c = full() ? Long.compare(kth(), o.kth()) : Long.compare(last(), o.last());
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private final int k;
+    private long clock = 0;
+    private final Map<PageId, History> histories = new HashMap<>();
+    private final TreeSet<History> order = new TreeSet<>();
+
+    /**
+     * @param k the number of most recent references remembered per page
+     */
+    public LruKPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+    }
+
+    public synchronized void admit(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid, clock, k);
+            histories.put(pid, h);
+        } else {
+            order.remove(h);
+        }
+        h.reference(clock++);
+        order.add(h);
+    }
+
+    public synchronized void access(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) return;
+        order.remove(h);
+        h.reference(clock++);
+        order.add(h);
+    }
+
+    public synchronized void remove(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null) order.remove(h);
+    }
+
+    public synchronized PageId evict(java.util.function.Predicate<PageId> evictable) {
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (evictable.test(h.pid)) {
+                it.remove();
+                histories.remove(h.pid);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<PageId> hottestFirst() {
+        List<PageId> hottest = new ArrayList<>(order.size());
+        for (Iterator<History> it = order.descendingIterator(); it.hasNext(); ) hottest.add(it.next().pid);
+        return hottest;
+    }
+
+    public String getName() {
+        return "lru-" + k;
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PageArena keeps the raw bytes of clean pages in direct memory, outside the
+ * Java heap. The BufferPool moves pages it evicts here and rebuilds them with
+ * {@link DbFile#createPage(PageId, byte[])} on a later miss, which is much
+ * cheaper than a disk read; the garbage collector only ever sees a small map
+ * from page id to frame number, however big the arena is.
+ * <p>
+ * Frames are carved out of direct ByteBuffers of up to 1 GB each, allocated
+ * on first use. When the arena is full, the page stored first is dropped.
+ * Pages whose size differs from the frame size are not stored.
+ *
+ * @Threadsafe
+ */
+public class PageArena {
+
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int capacity;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final LinkedHashMap<PageId, Integer> frames = new LinkedHashMap<>();
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<>();
+    private int allocated = 0;
+
+    /**
+     * @param capacity the number of pages the arena can hold
+     * @param pageSize the size of a page in bytes
+     */
+    public PageArena(int capacity, int pageSize) {
+        this.capacity = capacity;
+        this.pageSize = pageSize;
+        this.framesPerChunk = Math.max(1, CHUNK_BYTES / pageSize);
+        this.chunks = new ByteBuffer[(capacity + framesPerChunk - 1) / framesPerChunk];
+    }
+
+    /**
+     * Store a copy of the page, replacing an older copy if there is one.
+     *
+     * @param pid  the id of the page
+     * @param data the page data, as returned by {@link Page#getPageData()}
+     * @return false if the page does not fit a frame
+     */
+    public synchronized boolean put(PageId pid, byte[] data) {
+        if (data.length != pageSize || capacity == 0) return false;
+        Integer frame = frames.remove(pid);
+        if (frame == null) frame = freeFrames.poll();
+        if (frame == null && allocated < capacity) frame = allocated++;
+        if (frame == null) {
+            Iterator<Map.Entry<PageId, Integer>> oldest = frames.entrySet().iterator();
+            frame = oldest.next().getValue();
+            oldest.remove();
+        }
+        ByteBuffer chunk = chunk(frame);
+        chunk.position((frame % framesPerChunk) * pageSize);
+        chunk.put(data);
+        frames.put(pid, frame);
+        return true;
+    }
+
+    /**
+     * Remove a page from the arena.
+     *
+     * @return the page data, or null if the page is not in the arena
+     */
+    public synchronized byte[] take(PageId pid) {
+        Integer frame = frames.remove(pid);
+        if (frame == null) return null;
+        byte[] data = new byte[pageSize];
+        ByteBuffer chunk = chunk(frame);
+        chunk.position((frame % framesPerChunk) * pageSize);
+        chunk.get(data);
+        freeFrames.add(frame);
+        return data;
+    }
+
+    /**
+     * Drop a page from the arena, if it is there.
+     */
+    public synchronized void remove(PageId pid) {
+        Integer frame = frames.remove(pid);
+        if (frame != null) freeFrames.add(frame);
+    }
+
+    /**
+     * @return the number of pages in the arena
+     */
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * @return the number of pages the arena can hold
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the size of the pages stored in the arena
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    private ByteBuffer chunk(int frame) {
+        int i = frame / framesPerChunk;
+        if (chunks[i] == null) {
+            int frames = Math.min(framesPerChunk, capacity - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+        return chunks[i];
+    }
+}
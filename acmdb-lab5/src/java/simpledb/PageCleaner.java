@@ -0,0 +1,96 @@
+package simpledb;
+
+/**
+ * PageCleaner is the background writer of a BufferPool running in NO FORCE
+ * mode. Committing transactions only log their pages there; the pages stay
+ * dirty in the pool until the cleaner writes them back, so commits do not
+ * wait for page writes and eviction usually finds clean pages.
+ * <p>
+ * The cleaner wakes up every interval, or as soon as the number of committed
+ * dirty pages reaches the high watermark, and writes pages back until their
+ * number drops to the low watermark. Writes are rate limited with a token
+ * bucket so that the cleaner does not starve foreground I/O.
+ *
+ * @see BufferPool#startPageCleaner(int, int, int, long)
+ */
+class PageCleaner extends Thread {
+
+    private final BufferPool pool;
+    private final int pagesPerSecond;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final long intervalMillis;
+    private volatile boolean running = true;
+    private boolean signalled = false;
+
+    /**
+     * @param pool           the buffer pool to clean
+     * @param pagesPerSecond maximum number of pages written per second
+     * @param lowWatermark   number of committed dirty pages the cleaner stops at
+     * @param highWatermark  number of committed dirty pages that wakes the
+     *                       cleaner before its interval is over
+     * @param intervalMillis time between two rounds of the cleaner
+     */
+    PageCleaner(BufferPool pool, int pagesPerSecond, int lowWatermark, int highWatermark, long intervalMillis) {
+        super("simpledb-page-cleaner");
+        setDaemon(true);
+        this.pool = pool;
+        this.pagesPerSecond = pagesPerSecond;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Called by the buffer pool after a commit left pages to clean.
+     *
+     * @param committedDirty the number of committed dirty pages in the pool
+     */
+    void pagesCommitted(int committedDirty) {
+        if (committedDirty >= highWatermark) {
+            synchronized (this) {
+                signalled = true;
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Stop the cleaner and wait for the page it is writing, if any.
+     */
+    void shutdown() {
+        running = false;
+        synchronized (this) {
+            notify();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        double tokens = pagesPerSecond;
+        long lastRefill = System.nanoTime();
+        while (running) {
+            synchronized (this) {
+                if (!signalled) {
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                signalled = false;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(pagesPerSecond, tokens + pagesPerSecond * (now - lastRefill) / 1e9);
+            lastRefill = now;
+            int excess = pool.getCommittedDirtyCount() - lowWatermark;
+            int budget = (int) Math.min(excess, tokens);
+            if (running && budget > 0) tokens -= pool.cleanPages(budget);
+        }
+    }
+}
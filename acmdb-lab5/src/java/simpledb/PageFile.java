@@ -0,0 +1,466 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageFile is the page I/O layer under the DbFile implementations: one
+ * long-lived FileChannel per file on disk, shared by every DbFile on the
+ * file, and read and written with positional calls, so that a page costs
+ * the same to reach wherever it is in the file and needs no open or seek.
+ * <p>
+ * Channels are opened on first use and closed by {@link #closeAll()}, which
+ * {@link Catalog#clear()} calls; a closed channel is opened again when next
+ * used. Getting the PageFile of a file that was deleted or replaced since
+ * its channel was opened reopens the channel.
+ * <p>
+ * A thread interrupted during a FileChannel call closes the channel for
+ * everyone, so calls are made with the interrupt status of the thread
+ * cleared, and restore it afterwards; a call that finds the channel closed
+ * anyway opens it again and retries.
+ * <p>
+ * In memory-mapped mode (see {@link #setMapped(boolean)}) reads are served
+ * from read-only mappings of the file, in chunks of MAP_CHUNK bytes, so a
+ * page read is one copy out of the page cache with no system call. The
+ * mappings are extended when a read goes past their end, and unmapped when
+ * the channel is closed, or when getting the PageFile finds the file
+ * shorter than mapped. Writes still go through the channel, and are seen
+ * through the mappings. The file must not be truncated by other means
+ * while mapped.
+ * <p>
+ * A batch of pages (see {@link #writeBatch(long[], byte[][])}) is written
+ * in file order, each run of adjacent pages with one gathering write, and
+ * the file is forced to disk once for the batch.
+ *
+ * @Threadsafe
+ */
+public class PageFile {
+
+    /**
+     * Whether files are memory-mapped for reading by default. Override with
+     * -Dsimpledb.PageFile.mmap.
+     */
+    public static final boolean DEFAULT_MMAP = false;
+
+    /**
+     * Size of the regions of a file mapped at a time in memory-mapped mode.
+     */
+    public static final long MAP_CHUNK = 1L << 28;
+
+    // attempts of a call that finds its channel closed
+    private static final int ATTEMPTS = 3;
+
+    // sun.misc.Unsafe.invokeCleaner, to unmap a buffer at once, if this JVM has it
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object u = null;
+        Method m = null;
+        try {
+            Field f = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = f.get(null);
+            m = u.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // unmapping is left to the garbage collector
+        }
+        unsafe = u;
+        invokeCleaner = m;
+    }
+
+    private static final Map<File, PageFile> files = new ConcurrentHashMap<>();
+
+    private final File file;
+    private volatile FileChannel channel;
+    // identifies the file the channel is open on
+    private Object fileKey;
+    private volatile boolean mapped = Boolean.parseBoolean(
+            System.getProperty("simpledb.PageFile.mmap", String.valueOf(DEFAULT_MMAP)));
+    // held to read from the mappings, and exclusively to change them
+    private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    private long mappedLength = 0;
+    // gathering writes move the position of the channel
+    private final Object positionLock = new Object();
+
+    private PageFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the PageFile of a file, which need not exist yet
+     */
+    public static PageFile of(File f) {
+        PageFile pf = files.computeIfAbsent(f.getAbsoluteFile(), PageFile::new);
+        pf.revalidate();
+        return pf;
+    }
+
+    /**
+     * Close the channels of all files.
+     */
+    public static void closeAll() {
+        for (PageFile pf : files.values()) pf.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Turn the memory-mapped mode of the file on or off; turning it off
+     * unmaps the file.
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        if (!mapped) unmap();
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return the number of bytes of the file mapped now
+     */
+    public long getMappedLength() {
+        mapLock.readLock().lock();
+        try {
+            return mappedLength;
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Close the channel of the file, and unmap it; it is opened again when
+     * next used.
+     */
+    public synchronized void close() {
+        unmap();
+        FileChannel c = channel;
+        channel = null;
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            Debug.log(1, "PageFile: cannot close %s: %s", file, e);
+        }
+    }
+
+    // close the channel if the file it is open on is gone
+    private synchronized void revalidate() {
+        if (channel == null) return;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (Objects.equals(attrs.fileKey(), fileKey)) {
+                if (attrs.size() < getMappedLength()) unmap();
+                return;
+            }
+        } catch (IOException e) {
+            // deleted
+        }
+        close();
+    }
+
+    /**
+     * @param create whether to create the file if it does not exist
+     * @return the channel, or null if the file does not exist and create is
+     * false
+     */
+    private FileChannel channel(boolean create) throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen()) return c;
+        synchronized (this) {
+            c = channel;
+            if (c != null && c.isOpen()) return c;
+            try {
+                c = create
+                        ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE)
+                        : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+            fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            channel = c;
+            return c;
+        }
+    }
+
+    /**
+     * Read from the file into the buffer, until the buffer is full or the
+     * file ends.
+     *
+     * @param position the offset in the file to read from
+     * @return the number of bytes read; 0 if the file does not exist
+     */
+    public int read(ByteBuffer buf, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        int start = buf.position();
+        try {
+            if (mapped) {
+                int n = readMapped(buf, position);
+                if (n >= 0) return n;
+            }
+            for (int attempt = 1; ; attempt++) {
+                FileChannel c = channel(false);
+                if (c == null) return 0;
+                try {
+                    while (buf.hasRemaining() && c.read(buf, position + buf.position() - start) >= 0) ;
+                    return buf.position() - start;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    if (attempt == ATTEMPTS) throw e;
+                    buf.position(start);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read from the mappings of the file, mapping more of it if the read
+     * goes past their end; called with the interrupt status cleared.
+     *
+     * @return the number of bytes read, or -1 if the file does not exist or
+     * its channel was closed
+     */
+    private int readMapped(ByteBuffer buf, long position) throws IOException {
+        int len = buf.remaining();
+        mapLock.readLock().lock();
+        try {
+            if (position + len <= mappedLength) return copy(buf, position, len);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        try {
+            if (!extend()) return -1;
+        } catch (ClosedChannelException e) {
+            // closed meanwhile; read from the channel instead
+            return -1;
+        }
+        mapLock.readLock().lock();
+        try {
+            return copy(buf, position, (int) Math.max(0, Math.min(len, mappedLength - position)));
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    // called with the map lock held
+    private int copy(ByteBuffer buf, long position, int len) {
+        int done = 0;
+        while (done < len) {
+            MappedByteBuffer chunk = chunks[(int) ((position + done) / MAP_CHUNK)];
+            int offset = (int) ((position + done) % MAP_CHUNK);
+            int n = Math.min(len - done, chunk.limit() - offset);
+            ByteBuffer src = chunk.duplicate();
+            src.position(offset);
+            src.limit(offset + n);
+            buf.put(src);
+            done += n;
+        }
+        return len;
+    }
+
+    /**
+     * Map the file up to its current length.
+     *
+     * @return false if the file does not exist
+     */
+    private boolean extend() throws IOException {
+        // opening the channel locks this, which close() holds while it unmaps
+        FileChannel c = channel(false);
+        if (c == null) return false;
+        mapLock.writeLock().lock();
+        try {
+            long size = c.size();
+            if (size <= mappedLength) return true;
+            int n = (int) ((size + MAP_CHUNK - 1) / MAP_CHUNK);
+            MappedByteBuffer[] grown = new MappedByteBuffer[n];
+            // keep the full chunks; the last one is mapped again if it grew
+            int kept = (int) (mappedLength / MAP_CHUNK);
+            System.arraycopy(chunks, 0, grown, 0, kept);
+            if (kept < chunks.length) unmap(chunks[kept]);
+            for (int i = kept; i < n; i++) {
+                long start = i * MAP_CHUNK;
+                grown[i] = c.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_CHUNK, size - start));
+            }
+            chunks = grown;
+            mappedLength = size;
+            return true;
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    private void unmap() {
+        mapLock.writeLock().lock();
+        try {
+            for (MappedByteBuffer chunk : chunks) unmap(chunk);
+            chunks = new MappedByteBuffer[0];
+            mappedLength = 0;
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buf) {
+        if (invokeCleaner == null) return;
+        try {
+            invokeCleaner.invoke(unsafe, buf);
+        } catch (ReflectiveOperationException e) {
+            Debug.log(1, "PageFile: cannot unmap: %s", e);
+        }
+    }
+
+    /**
+     * Write the whole buffer to the file, creating the file if need be.
+     *
+     * @param position the offset in the file to write at; may be past its
+     *                 end
+     */
+    public void write(ByteBuffer buf, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        int start = buf.position();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                FileChannel c = channel(true);
+                try {
+                    while (buf.hasRemaining()) c.write(buf, position + buf.position() - start);
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    if (attempt == ATTEMPTS) throw e;
+                    buf.position(start);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write a batch of pages, or other blocks of data, and force them to
+     * disk: the blocks are sorted by offset, each run of blocks adjacent in
+     * the file is written with one gathering write, and the file is forced
+     * once at the end.
+     *
+     * @param offsets the offset in the file of each block
+     * @param data    the data of each block
+     */
+    public void writeBatch(long[] offsets, byte[][] data) throws IOException {
+        Integer[] order = new Integer[offsets.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingLong(i -> offsets[i]));
+        int first = 0;
+        while (first < order.length) {
+            // extend the run while the next block starts where the last one ends
+            int end = first + 1;
+            while (end < order.length && offsets[order[end]] == offsets[order[end - 1]] + data[order[end - 1]].length)
+                end++;
+            ByteBuffer[] run = new ByteBuffer[end - first];
+            for (int i = first; i < end; i++) run[i - first] = ByteBuffer.wrap(data[order[i]]);
+            write(run, offsets[order[first]]);
+            first = end;
+        }
+        force();
+    }
+
+    /**
+     * Write the buffers one after the other with gathering writes, creating
+     * the file if need be.
+     *
+     * @param position the offset in the file to write the first buffer at
+     */
+    public void write(ByteBuffer[] bufs, long position) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        int[] starts = new int[bufs.length];
+        long total = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            starts[i] = bufs[i].position();
+            total += bufs[i].remaining();
+        }
+        try {
+            for (int attempt = 1; ; attempt++) {
+                FileChannel c = channel(true);
+                try {
+                    synchronized (positionLock) {
+                        c.position(position);
+                        for (long left = total; left > 0; ) left -= c.write(bufs);
+                    }
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    if (attempt == ATTEMPTS) throw e;
+                    for (int i = 0; i < bufs.length; i++) bufs[i].position(starts[i]);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Force the writes made so far to disk.
+     */
+    public void force() throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                FileChannel c = channel(false);
+                if (c == null) return;
+                try {
+                    c.force(false);
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    if (attempt == ATTEMPTS) throw e;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the length of the file in bytes, 0 if it does not exist; read
+     * from the open channel, so it sees writes made by other means too
+     */
+    public long size() throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            for (int attempt = 1; ; attempt++) {
+                FileChannel c = channel(false);
+                if (c == null) return 0;
+                try {
+                    return c.size();
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    if (attempt == ATTEMPTS) throw e;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
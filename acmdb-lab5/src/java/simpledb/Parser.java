@@ -492,7 +492,55 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Handle an administrative command; these are not SQL and run outside
+     * of any transaction:
+     * <ul>
+     * <li>BUFFERPOOL; prints the statistics of the buffer pool</li>
+     * <li>BUFFERPOOL RESIZE n; resizes the buffer pool to n pages</li>
+     * <li>LOCKS; prints the lock waits, deadlock victims and waiting
+     * transactions</li>
+     * <li>LOCKS RESET; clears the lock wait statistics</li>
+     * </ul>
+     *
+     * @param cmd the command, with or without the trailing ';'
+     * @return false if cmd is not an administrative command
+     */
+    public boolean handleAdminCommand(String cmd) {
+        String[] words = cmd.trim().replaceAll(";$", "").trim().split("\\s+");
+        if (words[0].equalsIgnoreCase("locks")) return handleLocksCommand(words);
+        if (!words[0].equalsIgnoreCase("bufferpool")) return false;
+        BufferPool pool = Database.getBufferPool();
+        if (words.length == 1) {
+            System.out.println(pool.getStats());
+        } else if (words.length == 3 && words[1].equalsIgnoreCase("resize")) {
+            try {
+                pool.resize(Integer.parseInt(words[2]));
+                System.out.println("Buffer pool resized to " + pool.getNumPages() + " pages.");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid buffer pool size " + words[2]);
+            }
+        } else {
+            System.out.println("Usage: BUFFERPOOL; or BUFFERPOOL RESIZE n;");
+        }
+        return true;
+    }
+
+    private boolean handleLocksCommand(String[] words) {
+        LockManager locks = Database.getBufferPool().getLockManager();
+        if (words.length == 1) {
+            System.out.print(locks.getContentionStats());
+        } else if (words.length == 2 && words[1].equalsIgnoreCase("reset")) {
+            locks.resetContentionStats();
+            System.out.println("Lock statistics cleared.");
+        } else {
+            System.out.println("Usage: LOCKS; or LOCKS RESET;");
+        }
+        return true;
+    }
+
     public void processNextStatement(String s) {
+        if (handleAdminCommand(s)) return;
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -512,7 +560,11 @@ public class Parser {
             else {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
-                    curtrans.start();
+                    // a query on its own writes nothing
+                    if (s instanceof ZQuery)
+                        curtrans.startReadOnly();
+                    else
+                        curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
@@ -581,7 +633,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "bufferpool", "resize", "locks", "reset" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -599,6 +651,7 @@ public class Parser {
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
+        Database.getBufferPool().saveHotPages();
         System.out.println("Bye");
     }
 
@@ -608,6 +661,7 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        Database.getBufferPool().loadHotPages();
 
         String queryFile = null;
 
@@ -683,8 +737,9 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    if (!handleAdminCommand(cmd))
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ReadAhead watches the pages one scan fetches and, once the scan turns out
+ * to be sequential, reads the next pages into the BufferPool in the
+ * background, so that the scan finds them cached instead of waiting for
+ * each read. HeapFile scans are sequential in page number and are read
+ * ahead with multi-page reads; B+ tree scans follow the right-sibling
+ * pointers of the leaf pages.
+ * <p>
+ * The distance read ahead starts at two pages and doubles each time the
+ * scan catches up with half of it, up to simpledb.ReadAhead.maxPages and a
+ * quarter of the pool. A non-sequential access starts over. Pages read ahead
+ * take no lock; see {@link BufferPool#prefetched(Page, long)}.
+ * <p>
+ * Read-ahead is off unless -Dsimpledb.ReadAhead.enabled=true (or
+ * {@link #setEnabled(boolean)}); simpledb.ReadAhead.threads sets the number
+ * of background readers. One ReadAhead belongs to one scan and is not
+ * thread-safe.
+ */
+public class ReadAhead {
+
+    public static final int DEFAULT_MAX_PAGES = 32;
+    public static final int DEFAULT_THREADS = 2;
+    private static final int INITIAL_WINDOW = 2;
+
+    private static volatile boolean enabled = Boolean.getBoolean("simpledb.ReadAhead.enabled");
+
+    private static final ExecutorService readers = Executors.newFixedThreadPool(
+            Integer.getInteger("simpledb.ReadAhead.threads", DEFAULT_THREADS), r -> {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final BufferPool pool;
+    private final int maxWindow;
+    private int window = 0;
+
+    // HeapFile scans: the last page accessed and the last page read ahead
+    private int lastPage = -1;
+    private int issuedPage = -1;
+
+    // B+ tree scans: the leaf expected next and the leaves accessed since the last read-ahead
+    private BTreePageId expectedLeaf = null;
+    private int sinceIssue = 0;
+
+    /**
+     * @param pool the buffer pool to read pages into
+     */
+    public ReadAhead(BufferPool pool) {
+        this.pool = pool;
+        this.maxWindow = Math.max(1, Math.min(Integer.getInteger("simpledb.ReadAhead.maxPages", DEFAULT_MAX_PAGES),
+                pool.getNumPages() / 4));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        ReadAhead.enabled = enabled;
+    }
+
+    /**
+     * @return the number of pages currently read ahead of the scan
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Called by a HeapFile scan before it fetches a page.
+     *
+     * @param file     the file scanned
+     * @param pgNo     the number of the page about to be fetched
+     * @param numPages the number of pages of the file
+     */
+    public void heapPageAccessed(HeapFile file, int pgNo, int numPages) {
+        boolean sequential = pgNo == lastPage + 1;
+        lastPage = pgNo;
+        if (!sequential) {
+            window = 0;
+            issuedPage = pgNo;
+            return;
+        }
+        if (window == 0) window = Math.min(INITIAL_WINDOW, maxWindow);
+        else if (issuedPage - pgNo > window / 2) return;
+        int from = Math.max(issuedPage, pgNo) + 1;
+        int to = Math.min(pgNo + window, numPages - 1);
+        if (from > to) return;
+        issuedPage = to;
+        window = Math.min(window * 2, maxWindow);
+        submit(() -> {
+            long epoch = pool.prefetchEpoch();
+            List<Page> pages = file.readPages(from, to - from + 1);
+            for (Page page : pages) pool.prefetched(page, epoch);
+        });
+    }
+
+    /**
+     * Called by a B+ tree scan each time it moves to a leaf page.
+     *
+     * @param file the file scanned
+     * @param leaf the leaf the scan is about to read
+     */
+    public void leafAccessed(BTreeFile file, BTreeLeafPage leaf) {
+        boolean sequential = leaf.getId().equals(expectedLeaf);
+        expectedLeaf = leaf.getRightSiblingId();
+        if (!sequential) {
+            window = 0;
+            return;
+        }
+        if (expectedLeaf == null) return;
+        if (window == 0) window = Math.min(INITIAL_WINDOW, maxWindow);
+        else if (++sinceIssue < window / 2) return;
+        sinceIssue = 0;
+        int count = window;
+        BTreePageId start = expectedLeaf;
+        window = Math.min(window * 2, maxWindow);
+        submit(() -> {
+            BTreePageId pid = start;
+            for (int i = 0; i < count && pid != null; i++) {
+                Page page = pool.peekPage(pid);
+                if (page == null) {
+                    long epoch = pool.prefetchEpoch();
+                    page = file.readPage(pid);
+                    if (!pool.prefetched(page, epoch)) return;
+                }
+                pid = ((BTreeLeafPage) page).getRightSiblingId();
+            }
+        });
+    }
+
+    private static void submit(Runnable task) {
+        readers.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // read-ahead is only a hint; the scan reads the page itself
+                Debug.log(1, "ReadAhead: %s", e);
+            }
+        });
+    }
+}
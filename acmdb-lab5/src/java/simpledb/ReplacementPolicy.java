@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every page it admits, every
+ * hit on a resident page and every page it drops for other reasons (e.g.
+ * discardPage), and asks the policy for a victim when the pool is full.
+ * <p>
+ * The policy only orders pages; whether a page may be evicted at all (e.g.
+ * it is dirty and we are running NO STEAL) is decided by the BufferPool and
+ * passed in as a predicate.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called after a page is brought into the buffer pool.
+     *
+     * @param pid the id of the admitted page
+     */
+    public void admit(PageId pid);
+
+    /**
+     * Called on every buffer pool hit on a resident page.
+     *
+     * @param pid the id of the accessed page
+     */
+    public void access(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool without being chosen by
+     * {@link #evict}. Unknown pages are ignored.
+     *
+     * @param pid the id of the removed page
+     */
+    public void remove(PageId pid);
+
+    /**
+     * Choose a victim among the pages accepted by evictable and forget it.
+     *
+     * @param evictable tells whether a resident page may be evicted right now
+     * @return the id of the victim, or null if no resident page is evictable
+     */
+    public PageId evict(java.util.function.Predicate<PageId> evictable);
+
+    /**
+     * @return the pages tracked by this policy, in the reverse of the order
+     * they would be evicted in, i.e. hottest first
+     */
+    public java.util.List<PageId> hottestFirst();
+
+    /**
+     * Called when the number of frames managed by this policy changes, e.g.
+     * on {@link BufferPool#resize(int)}. Policies that do not depend on it
+     * ignore it.
+     *
+     * @param capacity the new number of frames
+     */
+    public default void setCapacity(int capacity) {
+    }
+
+    /**
+     * @return the short name of this policy, as accepted by
+     * {@link BufferPool#createPolicy(String, int)}
+     */
+    public String getName();
+}
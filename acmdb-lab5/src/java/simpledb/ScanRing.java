@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * ScanRing is the small private set of frames a large sequential scan reads
+ * its pages into, so that scanning a table bigger than the buffer pool does
+ * not evict the working set of other queries. Pages enter the ring instead
+ * of the main pool; once the ring is full, each new page takes over the frame
+ * of the oldest one. A page that is requested without the ring while it sits
+ * there is moved to the main pool. Ring frames count against the size of the
+ * pool and are the first to go when the pool needs room.
+ * <p>
+ * Get a ring from {@link BufferPool#getScanRing(int)} and pass it to
+ * {@link BufferPool#getPage(TransactionId, PageId, Permissions, ScanRing)}.
+ * A ring belongs to a single scan and is not thread-safe.
+ */
+public class ScanRing {
+
+    private final int size;
+    private final ArrayDeque<PageId> frames = new ArrayDeque<>();
+
+    ScanRing(int size) {
+        this.size = Math.max(1, size);
+    }
+
+    /**
+     * @return the page whose frame the next page read into this ring should
+     * take over, or null if the ring is not full yet
+     */
+    PageId recycle() {
+        return frames.size() >= size ? frames.poll() : null;
+    }
+
+    /**
+     * Record a page read into this ring.
+     */
+    void add(PageId pid) {
+        frames.add(pid);
+    }
+
+    /**
+     * @return the maximum number of pages held by this ring
+     */
+    public int getSize() {
+        return size;
+    }
+}
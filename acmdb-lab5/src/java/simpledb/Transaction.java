@@ -10,6 +10,8 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    // writes nothing, so it needs no log records
+    private volatile boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -25,6 +27,35 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot: it sees the
+     * database as committed now and takes no locks.
+     *
+     * @see BufferPool#beginSnapshot(TransactionId)
+     */
+    public void startSnapshot() {
+        Database.getBufferPool().beginSnapshot(tid);
+        readOnly = true;
+        started = true;
+    }
+
+    /**
+     * Start the transaction running as read-only: it writes no log records,
+     * fails on any attempt to write, and only releases its locks when it
+     * completes.
+     *
+     * @see BufferPool#beginReadOnly(TransactionId)
+     */
+    public void startReadOnly() {
+        Database.getBufferPool().beginReadOnly(tid);
+        readOnly = true;
+        started = true;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -42,13 +73,16 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //write out (or log, in NO FORCE mode) the dirty pages of this transaction
+                Database.getBufferPool().prepareCommit(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
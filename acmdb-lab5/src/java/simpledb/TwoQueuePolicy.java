@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * TwoQueuePolicy implements the simplified 2Q algorithm (Johnson and Shasha).
+ * New pages enter a FIFO probation queue (A1in). Pages evicted from it are
+ * remembered, without their data, in a ghost queue (A1out); a page that is
+ * admitted again while it is still remembered has proven to be hot and goes
+ * to the main LRU queue (Am).
+ *
+ * @see ReplacementPolicy
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+    private int kin;
+    private int kout;
+
+    /**
+     * @param capacity the number of frames managed by this policy; sizes the
+     *                 probation queue to a quarter and the ghost queue to a
+     *                 half of it
+     */
+    public TwoQueuePolicy(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Resize the probation and ghost queues for a new number of frames.
+     */
+    public synchronized void setCapacity(int capacity) {
+        kin = Math.max(1, capacity / 4);
+        kout = Math.max(1, capacity / 2);
+        trimGhosts();
+    }
+
+    public synchronized void admit(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) return;
+        if (a1out.remove(pid)) am.add(pid);
+        else a1in.add(pid);
+    }
+
+    public synchronized void access(PageId pid) {
+        if (am.remove(pid)) am.add(pid);
+    }
+
+    public synchronized void remove(PageId pid) {
+        if (!a1in.remove(pid)) am.remove(pid);
+    }
+
+    public synchronized PageId evict(java.util.function.Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin) victim = evictFrom(a1in, evictable);
+        if (victim == null) victim = evictFrom(am, evictable);
+        if (victim == null) victim = evictFrom(a1in, evictable);
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> queue, java.util.function.Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                if (queue == a1in) {
+                    a1out.add(pid);
+                    trimGhosts();
+                }
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<PageId> hottestFirst() {
+        List<PageId> hottest = new ArrayList<>(am);
+        Collections.reverse(hottest);
+        List<PageId> probation = new ArrayList<>(a1in);
+        Collections.reverse(probation);
+        hottest.addAll(probation);
+        return hottest;
+    }
+
+    private void trimGhosts() {
+        Iterator<PageId> it = a1out.iterator();
+        while (a1out.size() > kout) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public String getName() {
+        return "2q";
+    }
+}
@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UndoLog remembers the inserts and deletes running transactions made to
+ * heap pages under record locking (see
+ * {@link BufferPool#setRecordLocking(boolean)}). Several transactions may
+ * then have changes on the same page: an abort undoes only its own, and a
+ * commit writes a copy of the page with the changes of the others undone,
+ * so that disk never holds uncommitted tuples.
+ * <p>
+ * Changes to a page are logged, undone and dropped while holding the latch
+ * of the page, i.e. its monitor. The log itself takes no global lock: the
+ * changes of each page are updated atomically per page, and replaced rather
+ * than changed in place, so that they are read without any lock, and the
+ * pages of each transaction are kept apart, per transaction.
+ *
+ * @Threadsafe
+ */
+public class UndoLog {
+
+    /**
+     * An insert or a delete of one tuple.
+     */
+    static class Change {
+        final TransactionId tid;
+        final RecordId rid;
+        // the tuple deleted, or null for an insert
+        final Tuple deleted;
+
+        Change(TransactionId tid, RecordId rid, Tuple deleted) {
+            this.tid = tid;
+            this.rid = rid;
+            this.deleted = deleted;
+        }
+
+        boolean isDelete() {
+            return deleted != null;
+        }
+
+        void undo(HeapPage page) throws DbException {
+            int slot = rid.tupleno();
+            if (deleted == null) page.deleteTuple(page.getTuple(slot));
+            else page.insertTuple(deleted, slot);
+        }
+    }
+
+    // changes of each page, oldest first; a list is replaced, never changed
+    private final Map<PageId, List<Change>> byPage = new ConcurrentHashMap<>();
+    // pages of each transaction; a set is only used inside a compute on its key
+    private final Map<TransactionId, Set<PageId>> pagesOf = new ConcurrentHashMap<>();
+
+    /**
+     * Record that a transaction inserted the tuple with the given id.
+     */
+    public void logInsert(TransactionId tid, RecordId rid) {
+        log(new Change(tid, rid, null));
+    }
+
+    /**
+     * Record that a transaction deleted a tuple; the tuple must still carry
+     * its record id.
+     */
+    public void logDelete(TransactionId tid, Tuple deleted) {
+        log(new Change(tid, deleted.getRecordId(), deleted));
+    }
+
+    private void log(Change change) {
+        PageId pid = change.rid.getPageId();
+        byPage.compute(pid, (p, changes) -> {
+            List<Change> logged = changes == null ? new ArrayList<>(1) : new ArrayList<>(changes);
+            logged.add(change);
+            return logged;
+        });
+        pagesOf.compute(change.tid, (t, pids) -> {
+            if (pids == null) pids = new LinkedHashSet<>();
+            pids.add(pid);
+            return pids;
+        });
+    }
+
+    private List<Change> changesOf(PageId pid) {
+        List<Change> changes = byPage.get(pid);
+        return changes == null ? Collections.<Change>emptyList() : changes;
+    }
+
+    /**
+     * @return the pages the transaction has changes on
+     */
+    public List<PageId> getPages(TransactionId tid) {
+        List<PageId> pages = new ArrayList<>();
+        pagesOf.computeIfPresent(tid, (t, pids) -> {
+            pages.addAll(pids);
+            return pids;
+        });
+        return pages;
+    }
+
+    /**
+     * @return true if a transaction other than the given one has a change on
+     * the slot, which must then be left alone until it completes
+     */
+    public boolean isChangedByOther(RecordId rid, TransactionId tid) {
+        for (Change c : changesOf(rid.getPageId()))
+            if (!c.tid.equals(tid) && c.rid.equals(rid)) return true;
+        return false;
+    }
+
+    /**
+     * @return the tuples of the page deleted by transactions other than the
+     * given one that are still running
+     */
+    public List<Tuple> getDeletedByOthers(PageId pid, TransactionId tid) {
+        List<Tuple> deleted = new ArrayList<>();
+        for (Change c : changesOf(pid))
+            if (c.isDelete() && !c.tid.equals(tid)) deleted.add(c.deleted);
+        return deleted;
+    }
+
+    /**
+     * @return a transaction with changes on the page, or null if there are
+     * none
+     */
+    public TransactionId getWriter(PageId pid) {
+        List<Change> changes = byPage.get(pid);
+        return changes == null ? null : changes.get(changes.size() - 1).tid;
+    }
+
+    /**
+     * Make a copy of the page with the changes of all transactions but the
+     * given one undone.
+     */
+    public HeapPage committedImage(HeapPage page, TransactionId tid) throws DbException {
+        HeapPage image;
+        try {
+            image = new HeapPage(page.getId(), page.getPageData());
+        } catch (IOException e) {
+            throw new DbException("cannot copy page " + page.getId());
+        }
+        List<Change> changes = changesOf(page.getId());
+        for (int i = changes.size() - 1; i >= 0; i--)
+            if (!changes.get(i).tid.equals(tid)) changes.get(i).undo(image);
+        return image;
+    }
+
+    /**
+     * Forget the changes of a transaction on a page, undoing them first on
+     * the given page if it is not null.
+     *
+     * @return the number of changes dropped
+     */
+    public int drop(TransactionId tid, PageId pid, HeapPage undoOn) throws DbException {
+        List<Change> dropped = new ArrayList<>();
+        byPage.computeIfPresent(pid, (p, changes) -> {
+            List<Change> kept = new ArrayList<>(changes.size());
+            for (Change c : changes) (c.tid.equals(tid) ? dropped : kept).add(c);
+            return kept.isEmpty() ? null : kept;
+        });
+        if (undoOn != null)
+            for (int i = dropped.size() - 1; i >= 0; i--) dropped.get(i).undo(undoOn);
+        pagesOf.computeIfPresent(tid, (t, pids) -> {
+            pids.remove(pid);
+            return pids.isEmpty() ? null : pids;
+        });
+        return dropped.size();
+    }
+}
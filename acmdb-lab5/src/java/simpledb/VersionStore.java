@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps old committed versions of pages for snapshot
+ * transactions, which read the database as it was committed when they
+ * started, without taking locks.
+ * <p>
+ * Commits are numbered by a clock. A snapshot is the value of the clock
+ * when it starts. While snapshots are running, a commit changing a page
+ * first retains the page as committed before, tagged with the number of the
+ * commit superseding it; the versions of a page form a chain, oldest first.
+ * A snapshot reads the oldest retained version superseded after it
+ * started, or the current committed version if there is none. Versions no
+ * running snapshot can read any more are dropped when a snapshot ends.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    private static class Version {
+        final long supersededAt;
+        final Page page;
+
+        Version(long supersededAt, Page page) {
+            this.supersededAt = supersededAt;
+            this.page = page;
+        }
+    }
+
+    private final Map<PageId, ArrayDeque<Version>> chains = new HashMap<>();
+    // read on every page request, hence not guarded by the store
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // number of running snapshots by start, to find the oldest
+    private final TreeMap<Long, Integer> starts = new TreeMap<>();
+    private long clock = 0;
+    private int versions = 0;
+
+    /**
+     * Start a snapshot for the transaction at the current commit.
+     *
+     * @return the snapshot
+     */
+    public synchronized long begin(TransactionId tid) {
+        Long old = snapshots.put(tid, clock);
+        if (old != null) release(old);
+        starts.merge(clock, 1, Integer::sum);
+        return clock;
+    }
+
+    /**
+     * @return the snapshot of the transaction, or null if it does not read
+     * from a snapshot
+     */
+    public Long getSnapshot(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /**
+     * End the snapshot of the transaction, if it has one, and drop the
+     * versions no other snapshot can read.
+     */
+    public synchronized void end(TransactionId tid) {
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot == null) return;
+        release(snapshot);
+        collect();
+    }
+
+    private void release(long snapshot) {
+        starts.computeIfPresent(snapshot, (s, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /**
+     * @return true if any snapshot is running, in which case commits must
+     * retain the versions they supersede
+     */
+    public boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * @return the number the next commit gets
+     */
+    public synchronized long nextCommit() {
+        return clock + 1;
+    }
+
+    /**
+     * Make a commit visible to snapshots started from now on.
+     */
+    public synchronized void committed(long commit) {
+        clock = Math.max(clock, commit);
+    }
+
+    /**
+     * Retain the committed version of a page a commit is about to supersede.
+     *
+     * @param page   a private copy of the page as committed so far
+     * @param commit the number of the superseding commit
+     */
+    public synchronized void retain(Page page, long commit) {
+        chains.computeIfAbsent(page.getId(), p -> new ArrayDeque<>()).addLast(new Version(commit, page));
+        versions++;
+    }
+
+    /**
+     * @return the version of the page the snapshot reads, or null if it reads
+     * the current committed version
+     */
+    public synchronized Page find(PageId pid, long snapshot) {
+        ArrayDeque<Version> chain = chains.get(pid);
+        if (chain == null) return null;
+        for (Version v : chain)
+            if (v.supersededAt > snapshot) return v.page;
+        return null;
+    }
+
+    /**
+     * @return the number of versions retained
+     */
+    public synchronized int getVersionCount() {
+        return versions;
+    }
+
+    // a version superseded at or before the oldest snapshot is read by none
+    private void collect() {
+        long oldest = starts.isEmpty() ? Long.MAX_VALUE : starts.firstKey();
+        for (Iterator<ArrayDeque<Version>> it = chains.values().iterator(); it.hasNext(); ) {
+            ArrayDeque<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.peekFirst().supersededAt <= oldest) {
+                chain.removeFirst();
+                versions--;
+            }
+            if (chain.isEmpty()) it.remove();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * WarmRestart saves the ids of the pages resident in a BufferPool to a file
+ * and reads them back into a new pool, so that a restarted database does not
+ * have to warm its cache up from scratch.
+ * <p>
+ * The file is plain text with one page per line, hottest first: the table
+ * id and the page number, followed by the page category for B+ tree pages
+ * (the fields of {@link PageId#serialize()}). Table ids are derived from the
+ * paths of the table files and so stay valid across restarts; pages of
+ * tables that are no longer in the catalog are skipped.
+ *
+ * @see BufferPool#saveHotPages()
+ * @see BufferPool#loadHotPages()
+ */
+public class WarmRestart {
+
+    /**
+     * Write the ids of pages to a file, replacing it atomically.
+     *
+     * @param pids the ids, hottest first
+     * @param file the file to write
+     */
+    public static void save(List<PageId> pids, File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+            for (PageId pid : pids) {
+                StringBuilder line = new StringBuilder();
+                for (int field : pid.serialize()) {
+                    if (line.length() > 0) line.append(' ');
+                    line.append(field);
+                }
+                out.println(line);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the ids of pages written by {@link #save(List, File)}; malformed
+     * lines are skipped.
+     *
+     * @return the ids, hottest first
+     */
+    public static List<PageId> load(File file) throws IOException {
+        List<PageId> pids = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                try {
+                    if (fields.length == 2)
+                        pids.add(new HeapPageId(Integer.parseInt(fields[0]), Integer.parseInt(fields[1])));
+                    else if (fields.length == 3)
+                        pids.add(new BTreePageId(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                                Integer.parseInt(fields[2])));
+                } catch (NumberFormatException e) {
+                    // skip
+                }
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Start reading pages into a pool in the background. At most as many of
+     * the hottest pages as the pool holds are read, in the order of their
+     * offsets in the table files, so that the reads are sequential; runs of
+     * consecutive HeapFile pages are read at once. The pages are offered to
+     * the pool like pages read ahead (see {@link BufferPool#prefetched(Page,
+     * long)}), so they take no lock and are the first to go if the pool needs
+     * frames before they are used.
+     *
+     * @param pool the pool to read pages into
+     * @param pids the ids of the pages, hottest first
+     * @return the thread reading the pages
+     */
+    public static Thread reload(BufferPool pool, List<PageId> pids) {
+        List<PageId> toRead = new ArrayList<>();
+        for (PageId pid : pids) {
+            if (toRead.size() >= pool.getNumPages()) break;
+            try {
+                Database.getCatalog().getDatabaseFile(pid.getTableId());
+                toRead.add(pid);
+            } catch (NoSuchElementException e) {
+                // the table is gone
+            }
+        }
+        toRead.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::pageNumber));
+        Thread t = new Thread(() -> read(pool, toRead), "simpledb-warm-restart");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void read(BufferPool pool, List<PageId> pids) {
+        int i = 0;
+        while (i < pids.size()) {
+            PageId pid = pids.get(i);
+            int run = 1;
+            try {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if (file instanceof HeapFile && pid instanceof HeapPageId) {
+                    while (i + run < pids.size() && pids.get(i + run) instanceof HeapPageId
+                            && pids.get(i + run).getTableId() == pid.getTableId()
+                            && pids.get(i + run).pageNumber() == pid.pageNumber() + run)
+                        run++;
+                    long epoch = pool.prefetchEpoch();
+                    for (Page page : ((HeapFile) file).readPages(pid.pageNumber(), run))
+                        if (pool.peekPage(page.getId()) == null) pool.prefetched(page, epoch);
+                } else if (pool.peekPage(pid) == null) {
+                    long epoch = pool.prefetchEpoch();
+                    pool.prefetched(file.readPage(pid), epoch);
+                }
+            } catch (RuntimeException e) {
+                // warming up is only a hint (the table may have shrunk); queries read the pages themselves
+                Debug.log(1, "WarmRestart: %s", e);
+            }
+            i += run;
+        }
+    }
+}
@@ -172,6 +172,41 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	/**
+	 * An insert keeps its lock on the leaf page only: the root pointer and the
+	 * internal pages are only latched on the way down.
+	 */
+	@Test
+	public void testInsertLatchesInternalPages() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+
+		// make room in the left-most leaf, so that the insert does not split it
+		TransactionId first = new TransactionId();
+		DbFileIterator it = bigFile.iterator(first);
+		it.open();
+		Tuple t = it.next();
+		it.close();
+		bp.deleteTuple(first, t);
+		bp.transactionComplete(first);
+
+		t = new Tuple(t.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(-1));
+		bp.insertTuple(tid, bigFile.getId(), t);
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+
+		TransactionId other = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.tryGetPage(other, rootPtrId, Permissions.READ_WRITE);
+		assertNotNull(rootPtr);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		assertFalse(bp.holdsLock(tid, rootPtr.getRootId()));
+		assertNotNull(bp.tryGetPage(other, rootPtr.getRootId(), Permissions.READ_WRITE));
+		bp.transactionComplete(other);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
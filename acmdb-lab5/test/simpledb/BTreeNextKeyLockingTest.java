@@ -236,6 +236,72 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	@Test(timeout = 20000)
+	public void nextKeyLockingTestUnrelatedInsert() throws Exception {
+		// a B+ tree with a single leaf page
+		BTreeFile smallFile = BTreeUtility.createRandomBTreeFile(2, 100,
+				null, null, 0);
+		BTreePageId rootPtrPid = new BTreePageId(smallFile.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrPid, Permissions.READ_ONLY);
+		assertEquals(BTreePageId.LEAF, rootPtr.getRootId().pgcateg());
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// read all tuples with a key from the middle of the page
+		DbFileIterator fit = smallFile.iterator(tid);
+		fit.open();
+		for (int i = 0; i < 50; i++)
+			fit.next();
+		Field key = fit.next().getField(0);
+		fit.close();
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, key);
+		fit = smallFile.indexIterator(tid, ipred);
+		fit.open();
+		int keyCount = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			keyCount++;
+		}
+		fit.close();
+		assertTrue(keyCount > 0);
+
+		// an insert of a key outside the range read goes ahead on the same page
+		TransactionId tid1 = new TransactionId();
+		Database.getBufferPool().insertTuple(tid1, smallFile.getId(), BTreeUtility.getBTreeTuple(-1, 2));
+		Database.getBufferPool().transactionComplete(tid1);
+
+		// one of the key read waits
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw2 = new BTreeWriter(tid2, smallFile, ((IntField) key).getValue(), 1);
+		bw2.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(bw2.succeeded());
+
+		Database.getBufferPool().transactionComplete(tid);
+		while(!bw2.succeeded()) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
+	/**
+	 * A tryLockKey() that would have to wait takes no lock, not even the
+	 * intention lock on the table.
+	 */
+	@Test
+	public void failedTryLockKey() throws Exception {
+		BufferPool bp = Database.getBufferPool();
+		IndexKey key = new IndexKey(1, new IntField(7));
+		bp.lockKey(tid, key, LockMode.EXCLUSIVE);
+		TransactionId tid2 = new TransactionId();
+		assertFalse(bp.tryLockKey(tid2, key, LockMode.SHARED));
+		assertNull(bp.getLockManager().getLockMode(tid2, 1));
+		bp.transactionComplete(tid2);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolResizeTest extends SimpleDbTestBase {
+    private HeapFile f;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        bp = Database.resetBufferPool(4);
+        tid = new TransactionId();
+    }
+
+    private PageId pid(int pgNo) {
+        return new HeapPageId(f.getId(), pgNo);
+    }
+
+    /**
+     * Growing the pool keeps the cached pages and makes room for more.
+     */
+    @Test public void grow() throws Exception {
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        bp.resize(6);
+        assertEquals(6, bp.getNumPages());
+        for (int i = 0; i < 6; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertEquals(0, bp.getStats().getEvictions());
+        assertEquals(4, bp.getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Shrinking the pool evicts down to the new size, keeping the pages the
+     * policy ranks hottest, and keeps the locks of the transaction.
+     */
+    @Test public void shrink() throws Exception {
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        bp.resize(2);
+        assertEquals(2, bp.getStats().getResidentPages());
+        assertEquals(2, bp.getHotPages().size());
+        for (PageId pid : bp.getHotPages()) assertNotNull(bp.peekPage(pid));
+        assertTrue(bp.holdsLock(tid, pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages that cannot be evicted at once go as later pages are read in.
+     */
+    @Test public void shrinkIncrementally() throws Exception {
+        for (int i = 0; i < 4; i++)
+            bp.pinPage(tid, pid(i), Permissions.READ_ONLY);
+        bp.resize(1);
+        assertEquals(4, bp.getStats().getResidentPages());
+        for (int i = 0; i < 4; i++)
+            bp.unpinPage(tid, pid(i));
+        bp.getPage(tid, pid(4), Permissions.READ_ONLY);
+        assertEquals(3, bp.getStats().getResidentPages());
+        bp.getPage(tid, pid(5), Permissions.READ_ONLY);
+        assertEquals(2, bp.getStats().getResidentPages());
+        assertNull(bp.peekPage(pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A reservation whose evicted frames other readers take meanwhile evicts
+     * again rather than make the pool hold more pages than its size.
+     */
+    @Test public void framesTakenMeanwhile() throws Exception {
+        final HeapFile g = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        final TransactionId other = new TransactionId();
+        final int[] stolen = {0};
+        // an evicted page goes to the arena; right then, another reader takes the frame
+        bp.setArena(new PageArena(8, BufferPool.getPageSize()) {
+            @Override
+            public synchronized boolean put(PageId pid, byte[] data) {
+                boolean put = super.put(pid, data);
+                if (stolen[0] < 2) {
+                    try {
+                        bp.getPage(other, new HeapPageId(g.getId(), stolen[0]++), Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return put;
+            }
+        });
+        bp.getPage(tid, pid(4), Permissions.READ_ONLY);
+        assertEquals(2, stolen[0]);
+        assertEquals(4, bp.getFramesTaken());
+        bp.transactionComplete(other);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
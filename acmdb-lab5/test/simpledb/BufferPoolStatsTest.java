@@ -0,0 +1,84 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolStatsTest extends SimpleDbTestBase {
+    private HeapFile f;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(2);
+    }
+
+    /**
+     * Unit test for BufferPool.getStats()
+     */
+    @Test public void snapshot() throws Exception {
+        long read = DiskStats.HEAP.getBytesRead();
+        long written = DiskStats.HEAP.getBytesWritten();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(f.getId(), 3), Permissions.READ_ONLY);
+
+        BufferPoolStats stats = bp.getStats();
+        assertEquals(2, stats.getCapacity());
+        assertEquals(2, stats.getResidentPages());
+        assertEquals(1, stats.getHits());
+        assertEquals(4, stats.getMisses());
+        assertEquals(2, stats.getEvictions());
+        assertEquals(Collections.singletonMap(f.getId(), 2), stats.getPagesByTable());
+        assertEquals(Collections.singletonMap("heap", 2), stats.getPagesByCategory());
+        assertEquals(read + 4 * BufferPool.getPageSize(), stats.getHeapBytesRead());
+
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        bp.deleteTuple(tid, it.next());
+        it.close();
+        assertEquals(1, bp.getStats().getDirtyPages());
+        bp.transactionComplete(tid, true);
+        stats = bp.getStats();
+        assertEquals(0, stats.getDirtyPages());
+        assertEquals(1, stats.getFlushes());
+        assertEquals(written + BufferPool.getPageSize(), stats.getHeapBytesWritten());
+    }
+
+    /**
+     * The MBean reports on the current buffer pool.
+     */
+    @Test public void jmx() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(BufferPoolMetrics.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(1L, server.getAttribute(name, "Hits"));
+        assertEquals(1L, server.getAttribute(name, "Misses"));
+        assertEquals(1, server.getAttribute(name, "ResidentPages"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolStatsTest.class);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedPageCacheTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for LZCodec: data round-trips, repetitive data shrinks.
+     */
+    @Test public void codec() {
+        Random rand = new Random(42);
+        byte[] random = new byte[5000];
+        rand.nextBytes(random);
+        byte[] repetitive = new byte[5000];
+        for (int i = 0; i < repetitive.length; i++) repetitive[i] = (byte) (i % 300 < 200 ? 0 : i % 7);
+        for (byte[] data : new byte[][]{new byte[0], new byte[]{1, 2, 3}, random, repetitive, new byte[4096]}) {
+            byte[] compressed = LZCodec.compress(data);
+            assertArrayEquals(data, LZCodec.decompress(compressed, data.length));
+        }
+        assertTrue(LZCodec.compress(repetitive).length < repetitive.length / 4);
+    }
+
+    /**
+     * Unit test for CompressedPageCache put/take and the byte bound.
+     */
+    @Test public void putTake() {
+        byte[] zeros = new byte[4096];
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        CompressedPageCache cache = new CompressedPageCache(5000);
+        assertTrue(cache.put(new HeapPageId(1, 0), zeros));
+        assertTrue(cache.getBytes() < 100);
+        assertTrue(cache.put(new HeapPageId(1, 1), random));
+        assertEquals(2, cache.size());
+        // random data does not compress; the two oldest pages make room
+        assertTrue(cache.put(new HeapPageId(1, 2), random.clone()));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getDropCount());
+        assertFalse(new CompressedPageCache(100).put(new HeapPageId(1, 3), random));
+
+        assertArrayEquals(random, cache.take(new HeapPageId(1, 2)));
+        assertNull(cache.take(new HeapPageId(1, 1)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Pages evicted from the pool come back from the compressed cache
+     * instead of disk.
+     */
+    @Test public void evictedPagesComeBack() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setCompressedCache(new CompressedPageCache(1 << 20));
+        TransactionId tid = new TransactionId();
+        byte[][] before = new byte[4][];
+        for (int i = 0; i < 4; i++)
+            before[i] = bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY).getPageData();
+        long read = DiskStats.HEAP.getBytesRead();
+        for (int i = 0; i < 4; i++)
+            assertArrayEquals(before[i], bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY).getPageData());
+        assertEquals(read, DiskStats.HEAP.getBytesRead());
+        assertEquals(4, bp.getCompressedCache().getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageCacheTest.class);
+    }
+}
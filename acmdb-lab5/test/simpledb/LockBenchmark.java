@@ -0,0 +1,66 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Benchmark of a transaction re-reading pages it has locked already, as the
+ * inner relation of a nested loops join does on every rescan. Reports the
+ * time and the bytes allocated per page request, for the fast path of
+ * {@link BufferPool#getPage(TransactionId, PageId, Permissions)} and for the
+ * full lock request it saves, {@link LockManager#acquire(TransactionId, Object, LockMode)}
+ * of the table and the page.
+ * <p>
+ * Not a unit test; run with
+ * <pre>java -cp bin/src:bin/test simpledb.LockBenchmark [pages [rounds]]</pre>
+ */
+public class LockBenchmark {
+
+    private interface Op {
+        void run(PageId pid) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        int rowsPerPage = BufferPool.getPageSize() * 8 / (Type.INT_TYPE.getLen() * 8 + 1);
+        HeapFile file = SystemTestUtil.createRandomHeapFile(1, pages * rowsPerPage, null, null);
+        final BufferPool bp = Database.resetBufferPool(pages);
+        final LockManager lm = bp.getLockManager();
+        final TransactionId tid = new TransactionId();
+        final Integer table = file.getId();
+        PageId[] pids = new PageId[file.numPages()];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = new HeapPageId(file.getId(), i);
+            bp.getPage(tid, pids[i], Permissions.READ_ONLY);
+        }
+
+        for (int i = 0; i < 2; i++) {
+            // the first pass warms up
+            measure("getPage, lock held", pids, rounds, i == 1,
+                    pid -> bp.getPage(tid, pid, Permissions.READ_ONLY));
+            measure("LockManager.acquire, lock held", pids, rounds, i == 1, pid -> {
+                lm.acquire(tid, table, LockMode.INTENTION_SHARED);
+                lm.acquire(tid, pid, LockMode.SHARED);
+            });
+        }
+        bp.transactionComplete(tid);
+    }
+
+    private static void measure(String name, PageId[] pids, int rounds, boolean report, Op op) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            for (PageId pid : pids) op.run(pid);
+        long nanos = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+        long ops = (long) rounds * pids.length;
+        if (report)
+            System.out.printf("%-32s %8.1f ns/op %8.2f bytes/op%n", name, (double) nanos / ops, (double) bytes / ops);
+    }
+}
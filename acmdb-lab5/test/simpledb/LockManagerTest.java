@@ -0,0 +1,288 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final PageId P0 = new HeapPageId(-1, 0);
+    private static final PageId P1 = new HeapPageId(-1, 1);
+
+    /**
+     * Lock in a new thread; the thread ends once the lock is granted, and
+     * records a TransactionAbortedException.
+     */
+    private static class Locker extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final Object resource;
+        final LockMode mode;
+        volatile boolean aborted = false;
+
+        Locker(LockManager lm, TransactionId tid, Object resource, LockMode mode) {
+            this.lm = lm;
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquire(tid, resource, mode);
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    private static void waitUntilBlocked(LockManager lm, int waiting) throws InterruptedException {
+        for (int i = 0; i < 200 && lm.getWaitingCount() < waiting; i++) Thread.sleep(5);
+        assertEquals(waiting, lm.getWaitingCount());
+    }
+
+    /**
+     * A reader arriving after a waiting writer queues behind it.
+     */
+    @Test public void fifo() throws Exception {
+        LockManager lm = new LockManager(0, 4);
+        TransactionId r1 = new TransactionId(), w = new TransactionId(), r2 = new TransactionId();
+        lm.acquire(r1, P0, LockMode.SHARED);
+        Locker writer = new Locker(lm, w, P0, LockMode.EXCLUSIVE);
+        waitUntilBlocked(lm, 1);
+        assertFalse(lm.tryAcquire(r2, P0, LockMode.SHARED));
+        Locker reader = new Locker(lm, r2, P0, LockMode.SHARED);
+        waitUntilBlocked(lm, 2);
+
+        lm.releaseAll(r1);
+        writer.join(1000);
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(w, P0));
+        assertTrue(reader.isAlive());
+        lm.release(w, P0);
+        reader.join(1000);
+        assertTrue(lm.holdsLock(r2, P0));
+        lm.releaseAll(r2);
+        assertEquals(0, lm.getLockedResourceCount());
+    }
+
+    /**
+     * A sole reader upgrades at once; two readers upgrading deadlock, and
+     * the second one aborts.
+     */
+    @Test public void upgrade() throws Exception {
+        LockManager lm = new LockManager(0, 4);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, P0, LockMode.SHARED);
+        lm.acquire(t1, P0, LockMode.EXCLUSIVE);
+        lm.acquire(t1, P0, LockMode.SHARED);
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(t1, P0));
+        lm.releaseAll(t1);
+
+        lm.acquire(t1, P1, LockMode.SHARED);
+        lm.acquire(t2, P1, LockMode.SHARED);
+        Locker first = new Locker(lm, t1, P1, LockMode.EXCLUSIVE);
+        waitUntilBlocked(lm, 1);
+        try {
+            lm.acquire(t2, P1, LockMode.EXCLUSIVE);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(t2);
+        first.join(1000);
+        assertFalse(first.aborted);
+        assertEquals(LockMode.EXCLUSIVE, lm.getLockMode(t1, P1));
+    }
+
+    /**
+     * The fast path reports the locks a transaction holds in a covering mode.
+     */
+    @Test public void holds() throws Exception {
+        LockManager lm = new LockManager(0, 4);
+        TransactionId t1 = new TransactionId();
+        assertFalse(lm.holds(t1, P0, LockMode.SHARED));
+        lm.acquire(t1, P0, LockMode.SHARED);
+        assertTrue(lm.holds(t1, P0, LockMode.SHARED));
+        assertTrue(lm.holds(t1, P0, LockMode.INTENTION_SHARED));
+        assertFalse(lm.holds(t1, P0, LockMode.EXCLUSIVE));
+        assertFalse(lm.holds(t1, P1, LockMode.SHARED));
+        lm.release(t1, P0);
+        assertFalse(lm.holds(t1, P0, LockMode.SHARED));
+    }
+
+    /**
+     * Intention locks on a table: IS and IX go together, a shared table lock
+     * excludes IX, and S plus IX upgrade to SIX.
+     */
+    @Test public void intentionModes() throws Exception {
+        LockManager lm = new LockManager(0, 4);
+        Integer table = -1;
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, table, LockMode.INTENTION_EXCLUSIVE);
+        assertTrue(lm.tryAcquire(t2, table, LockMode.INTENTION_SHARED));
+        assertFalse(lm.tryAcquire(t2, table, LockMode.SHARED));
+        lm.releaseAll(t2);
+
+        lm.acquire(t1, table, LockMode.SHARED);
+        assertEquals(LockMode.SHARED_INTENTION_EXCLUSIVE, lm.getLockMode(t1, table));
+        assertTrue(lm.tryAcquire(t2, table, LockMode.INTENTION_SHARED));
+        assertFalse(lm.tryAcquire(t2, table, LockMode.INTENTION_EXCLUSIVE));
+        assertTrue(LockMode.EXCLUSIVE.covers(LockMode.SHARED_INTENTION_EXCLUSIVE));
+        assertFalse(LockMode.SHARED.covers(LockMode.INTENTION_EXCLUSIVE));
+    }
+
+    /**
+     * A wait longer than the timeout aborts.
+     */
+    @Test public void timeout() throws Exception {
+        LockManager lm = new LockManager(50, 4);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, P0, LockMode.EXCLUSIVE);
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquire(t2, P0, LockMode.SHARED);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertNull(lm.getLockMode(t2, P0));
+        assertEquals(0, lm.getWaitingCount());
+    }
+
+    /**
+     * A deadlock of two writers: the background detector aborts the
+     * younger one.
+     */
+    @Test public void detect() throws Exception {
+        LockManager lm = new LockManager(0, 4, DeadlockPolicy.DETECT, 5);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(older, P0, LockMode.EXCLUSIVE);
+        lm.acquire(younger, P1, LockMode.EXCLUSIVE);
+        Locker o = new Locker(lm, older, P1, LockMode.EXCLUSIVE);
+        Locker y = new Locker(lm, younger, P0, LockMode.EXCLUSIVE);
+        y.join(1000);
+        assertTrue(y.aborted);
+        lm.releaseAll(younger);
+        o.join(1000);
+        assertFalse(o.aborted);
+        assertEquals(1, lm.getDeadlockCount());
+    }
+
+    /**
+     * Wait-die: an older transaction waits for a younger one, a younger one
+     * asking for a lock an older one holds aborts at once.
+     */
+    @Test public void waitDie() throws Exception {
+        LockManager lm = new LockManager(0, 4, DeadlockPolicy.WAIT_DIE, 0);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(older, P0, LockMode.EXCLUSIVE);
+        lm.acquire(younger, P1, LockMode.EXCLUSIVE);
+        try {
+            lm.acquire(younger, P0, LockMode.SHARED);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        Locker o = new Locker(lm, older, P1, LockMode.SHARED);
+        waitUntilBlocked(lm, 1);
+        lm.releaseAll(younger);
+        o.join(1000);
+        assertFalse(o.aborted);
+    }
+
+    /**
+     * Wound-wait: an older transaction wounds a younger one holding the lock
+     * it asks for; the younger one aborts on its next request.
+     */
+    @Test public void woundWait() throws Exception {
+        LockManager lm = new LockManager(0, 4, DeadlockPolicy.WOUND_WAIT, 0);
+        TransactionId older = new TransactionId(), younger = new TransactionId();
+        lm.acquire(younger, P0, LockMode.EXCLUSIVE);
+        Locker o = new Locker(lm, older, P0, LockMode.EXCLUSIVE);
+        waitUntilBlocked(lm, 1);
+        try {
+            lm.acquire(younger, P1, LockMode.SHARED);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(younger);
+        o.join(1000);
+        assertFalse(o.aborted);
+        assertTrue(lm.holdsLock(older, P0));
+
+        // a younger transaction waits for an older one
+        TransactionId young = new TransactionId();
+        Locker y = new Locker(lm, young, P0, LockMode.SHARED);
+        waitUntilBlocked(lm, 1);
+        lm.releaseAll(older);
+        y.join(1000);
+        assertFalse(y.aborted);
+    }
+
+    /**
+     * The contention profile counts the waits on each resource, shows who
+     * waits for whom and names the deadlock victims.
+     */
+    @Test public void contentionStats() throws Exception {
+        LockManager lm = new LockManager(0, 4, DeadlockPolicy.DETECT, 1, 1);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquire(t1, P0, LockMode.EXCLUSIVE);
+        lm.acquire(t2, P1, LockMode.EXCLUSIVE);
+        Locker waiter = new Locker(lm, t2, P0, LockMode.SHARED);
+        waitUntilBlocked(lm, 1);
+        LockContentionStats stats = lm.getContentionStats();
+        assertEquals(1, stats.getWaiters().size());
+        assertEquals(P0, stats.getWaiters().get(0).getResource());
+        assertEquals(1, stats.getWaitChains().size());
+        assertEquals(Arrays.asList(t2, t1), stats.getWaitChains().get(0));
+
+        // t1 waiting for t2 closes a cycle; t2, the younger, is the victim
+        Locker other = new Locker(lm, t1, P1, LockMode.SHARED);
+        waiter.join(1000);
+        assertTrue(waiter.aborted);
+        lm.releaseAll(t2);
+        other.join(1000);
+        assertFalse(other.aborted);
+        lm.releaseAll(t1);
+
+        stats = lm.getContentionStats();
+        assertEquals(2, stats.getWaits());
+        assertEquals(1, stats.getDeadlocks());
+        assertEquals(0, stats.getWaiters().size());
+        long pageWaits = 0;
+        for (long n : stats.getHistogram("page")) pageWaits += n;
+        assertEquals(2, pageWaits);
+        assertEquals(1, stats.getVictims().size());
+        assertEquals(t2, stats.getVictims().get(0).getTransactionId());
+        assertEquals(P0, stats.getVictims().get(0).getResource());
+        assertEquals(2, stats.getResources().size());
+        for (LockContentionStats.Resource r : stats.getResources()) {
+            assertEquals(1, r.getWaits());
+            assertEquals(r.getResource().equals(P0) ? 1 : 0, r.getDeadlocks());
+        }
+
+        lm.resetContentionStats();
+        assertEquals(0, lm.getContentionStats().getWaits());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
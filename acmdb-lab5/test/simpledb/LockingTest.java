@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +188,50 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming locking.
+   * Completing a transaction releases all of its locks and leaves those of
+   * other transactions alone.
+   */
+  @Test public void completeReleasesLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsLock(tid1, p1));
+    assertTrue(bp.holdsLock(tid2, p2));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for lock escalation: page locks past the threshold are
+   * replaced by a lock on the table, which covers the other pages too.
+   */
+  @Test public void escalation() throws Exception {
+    bp.setLockEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    LockManager lm = bp.getLockManager();
+    assertEquals(LockMode.SHARED, lm.getLockMode(tid1, empty.getId()));
+    assertNull(lm.getLockMode(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    // other readers proceed, writers wait for the table lock
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * A tryGetPage() that would have to wait takes no lock, not even the
+   * intention lock on the table.
+   */
+  @Test public void failedTryGetPage() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertNull(bp.tryGetPage(tid2, p0, Permissions.READ_ONLY));
+    assertNull(bp.getLockManager().getLockMode(tid2, empty.getId()));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,87 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    private static byte[] data(int size, int value) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    /**
+     * Unit test for PageArena put/take and eviction of the oldest page.
+     */
+    @Test public void putTake() {
+        PageArena arena = new PageArena(2, 16);
+        assertTrue(arena.put(new HeapPageId(1, 0), data(16, 0)));
+        assertTrue(arena.put(new HeapPageId(1, 1), data(16, 1)));
+        assertTrue(arena.put(new HeapPageId(1, 2), data(16, 2)));
+        assertFalse(arena.put(new HeapPageId(1, 3), data(8, 3)));
+        assertEquals(2, arena.size());
+
+        assertNull(arena.take(new HeapPageId(1, 0)));
+        assertArrayEquals(data(16, 2), arena.take(new HeapPageId(1, 2)));
+        assertNull(arena.take(new HeapPageId(1, 2)));
+        arena.remove(new HeapPageId(1, 1));
+        assertEquals(0, arena.size());
+    }
+
+    /**
+     * Pages evicted from the pool come back from the arena instead of disk.
+     */
+    @Test public void evictedPagesComeBack() throws Exception {
+        class CountingHeapFile extends HeapFile {
+            int reads = 0;
+
+            CountingHeapFile(File f, TupleDesc td) {
+                super(f, td);
+            }
+
+            @Override
+            public Page readPage(PageId pid) {
+                reads++;
+                return super.readPage(pid);
+            }
+        }
+        File file = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 4, 100, null, null);
+        CountingHeapFile f = new CountingHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setArena(new PageArena(4, BufferPool.getPageSize()));
+        TransactionId tid = new TransactionId();
+        byte[][] before = new byte[4][];
+        for (int i = 0; i < 4; i++)
+            before[i] = bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY).getPageData();
+        assertEquals(4, f.reads);
+        assertEquals(2, bp.getArena().size());
+
+        for (int i = 0; i < 4; i++)
+            assertArrayEquals(before[i], bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY).getPageData());
+        assertEquals(4, f.reads);
+        assertEquals(4, bp.getArenaHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCleanerTest extends TestUtil.CreateHeapFile {
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.getBufferPool();
+    }
+
+    @After public void tearDown() {
+        bp.shutdown();
+    }
+
+    private HeapPageId insert(TransactionId tid, int count) throws Exception {
+        Tuple t = null;
+        for (int i = 0; i < count; i++) {
+            t = Utility.getHeapTuple(i, 2);
+            bp.insertTuple(tid, empty.getId(), t);
+        }
+        return (HeapPageId) t.getRecordId().getPageId();
+    }
+
+    /**
+     * Unit test for NO FORCE commit: the committed page is logged, left dirty
+     * in the pool and written back by the cleaner.
+     */
+    @Test public void cleanerWritesCommittedPages() throws Exception {
+        bp.startPageCleaner(1000, 0, 1, 10);
+        TransactionId tid = new TransactionId();
+        // the first tuple goes to disk with the new page, the second does not
+        HeapPageId pid = insert(tid, 2);
+        bp.transactionComplete(tid, true);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getCommittedDirtyCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, bp.getCommittedDirtyCount());
+        assertEquals(502, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for eviction while the cleaner is behind: a page holding
+     * committed changes is written back synchronously to make room.
+     */
+    @Test public void evictionWritesCommittedPages() throws Exception {
+        bp = Database.resetBufferPool(1);
+        bp.startPageCleaner(0, 0, 1, 10);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = insert(tid, 504);
+        bp.transactionComplete(tid, true);
+        assertEquals(1, bp.getCommittedDirtyCount());
+
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        tid = new TransactionId();
+        assertNotNull(bp.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getCommittedDirtyCount());
+        assertEquals(0, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for abort in NO FORCE mode: a page holding committed changes
+     * goes back to its committed image instead of being dropped.
+     */
+    @Test public void abortRestoresCommittedImage() throws Exception {
+        bp.startPageCleaner(0, 0, 1, 10);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = insert(tid, 1);
+        bp.transactionComplete(tid, true);
+
+        tid = new TransactionId();
+        insert(tid, 2);
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(503, page.getNumEmptySlots());
+        assertEquals(1, bp.getCommittedDirtyCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
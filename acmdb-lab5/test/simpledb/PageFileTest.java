@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageFileTest extends SimpleDbTestBase {
+
+    private File file;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("pagefile", ".dat");
+        file.deleteOnExit();
+        assertTrue(file.delete());
+    }
+
+    @After public void closeFiles() {
+        PageFile.closeAll();
+    }
+
+    /**
+     * Positional writes and reads, anywhere in the file; a read stops at
+     * the end of the file.
+     */
+    @Test public void readWrite() throws Exception {
+        PageFile pf = PageFile.of(file);
+        assertSame(pf, PageFile.of(new File(file.getPath())));
+        assertEquals(0, pf.size());
+        assertEquals(0, pf.read(ByteBuffer.allocate(4), 0));
+
+        pf.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 8);
+        assertEquals(12, pf.size());
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals(6, pf.read(buf, 6));
+        assertArrayEquals(new byte[]{0, 0, 1, 2, 3, 4, 0, 0}, buf.array());
+    }
+
+    /**
+     * A closed channel, or one closed by an interrupt, is opened again.
+     */
+    @Test public void reopen() throws Exception {
+        PageFile pf = PageFile.of(file);
+        pf.write(ByteBuffer.wrap(new byte[]{5}), 0);
+        PageFile.closeAll();
+        assertEquals(1, pf.size());
+
+        Thread.currentThread().interrupt();
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        assertEquals(1, pf.read(buf, 0));
+        assertTrue(Thread.interrupted());
+        assertEquals(5, buf.get(0));
+        assertEquals(1, pf.size());
+    }
+
+    /**
+     * A mapped file is read from its mapping, which grows with the file and
+     * goes when the file is closed.
+     */
+    @Test public void mapped() throws Exception {
+        PageFile pf = PageFile.of(file);
+        pf.setMapped(true);
+        try {
+            pf.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}), 0);
+            ByteBuffer buf = ByteBuffer.allocate(4);
+            assertEquals(4, pf.read(buf, 0));
+            assertArrayEquals(new byte[]{1, 2, 3, 4}, buf.array());
+            assertEquals(4, pf.getMappedLength());
+
+            // written through the channel, seen through the mapping
+            pf.write(ByteBuffer.wrap(new byte[]{9}), 1);
+            pf.write(ByteBuffer.wrap(new byte[]{5, 6}), 4);
+            buf = ByteBuffer.allocate(8);
+            assertEquals(6, pf.read(buf, 0));
+            assertArrayEquals(new byte[]{1, 9, 3, 4, 5, 6, 0, 0}, buf.array());
+            assertEquals(6, pf.getMappedLength());
+
+            PageFile.closeAll();
+            assertEquals(0, pf.getMappedLength());
+            buf = ByteBuffer.allocate(2);
+            assertEquals(2, pf.read(buf, 4));
+            assertArrayEquals(new byte[]{5, 6}, buf.array());
+        } finally {
+            pf.setMapped(false);
+        }
+    }
+
+    /**
+     * A batch lands at its offsets whatever its order, adjacent blocks and
+     * blocks apart alike.
+     */
+    @Test public void writeBatch() throws Exception {
+        PageFile pf = PageFile.of(file);
+        pf.writeBatch(new long[]{6, 2, 0, 4},
+                new byte[][]{{7, 8}, {3, 4}, {1, 2}, {5}});
+        assertEquals(8, pf.size());
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals(8, pf.read(buf, 0));
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 0, 7, 8}, buf.array());
+
+        pf.writeBatch(new long[0], new byte[0][]);
+        assertEquals(8, pf.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFileTest.class);
+    }
+}
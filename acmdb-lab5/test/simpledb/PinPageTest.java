@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PinPageTest extends SimpleDbTestBase {
+    private BufferPool bp;
+    private HeapFile f;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    private PageId pid(int pgNo) {
+        return new HeapPageId(f.getId(), pgNo);
+    }
+
+    /**
+     * A pinned page survives eviction until it is unpinned.
+     */
+    @Test public void pinnedPageStays() throws Exception {
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        for (int i = 1; i < 4; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertNotNull(bp.peekPage(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(0)));
+
+        bp.unpinPage(tid, pid(0));
+        assertEquals(0, bp.getPinCount(pid(0)));
+        bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        assertNull(bp.peekPage(pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The pool runs out of frames when every page is pinned; completing the
+     * transaction drops its pins.
+     */
+    @Test public void allPinned() throws Exception {
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(pid(1)));
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(0, bp.getPinCount(pid(1)));
+        bp.unpinPage(tid, pid(0));
+
+        tid = new TransactionId();
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A heap scan keeps only the page it is reading pinned.
+     */
+    @Test public void scanPinsCurrentPage() throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        for (int i = 0; i < 505; i++) it.next();
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.getPinCount(pid(1)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PinPageTest.class);
+    }
+}
@@ -0,0 +1,143 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(tid);
+    }
+
+    private Page awaitPage(PageId pid) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.peekPage(pid) == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        return bp.peekPage(pid);
+    }
+
+    /**
+     * Sequential HeapFile access reads the next pages ahead, with a window
+     * that grows, and a jump starts over.
+     */
+    @Test public void heapSequential() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        ReadAhead ra = new ReadAhead(bp);
+        ra.heapPageAccessed(f, 0, f.numPages());
+        assertEquals(4, ra.getWindow());
+        assertNotNull(awaitPage(new HeapPageId(f.getId(), 1)));
+        assertNotNull(awaitPage(new HeapPageId(f.getId(), 2)));
+
+        long misses = bp.getMissCount();
+        bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+
+        ra.heapPageAccessed(f, 1, f.numPages());
+        assertEquals(8, ra.getWindow());
+        ra.heapPageAccessed(f, 10, f.numPages());
+        assertEquals(0, ra.getWindow());
+    }
+
+    /**
+     * Moving to the right sibling of a leaf reads the following leaves ahead.
+     */
+    @Test public void btreeLeafChain() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(f.getId()),
+                Permissions.READ_ONLY);
+        BTreeLeafPage leaf = f.findLeafPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY, null);
+        ReadAhead ra = new ReadAhead(bp);
+        ra.leafAccessed(f, leaf);
+        assertEquals(0, ra.getWindow());
+
+        leaf = (BTreeLeafPage) bp.getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+        ra.leafAccessed(f, leaf);
+        BTreeLeafPage next = (BTreeLeafPage) awaitPage(leaf.getRightSiblingId());
+        assertNotNull(next);
+        assertNotNull(awaitPage(next.getRightSiblingId()));
+    }
+
+    /**
+     * A scan of a pool of two pages, one of them dirty, never fails for
+     * want of a frame while pages are read ahead, as read-ahead only takes
+     * free frames.
+     */
+    @Test public void tinyPool() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        HeapFile dirty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        bp = Database.resetBufferPool(2);
+        bp.insertTuple(tid, dirty.getId(), Utility.getHeapTuple(1, 2));
+        boolean enabled = ReadAhead.isEnabled();
+        ReadAhead.setEnabled(true);
+        try {
+            for (int i = 0; i < 20; i++) {
+                SeqScan scan = new SeqScan(tid, f.getId(), "");
+                scan.open();
+                int n = 0;
+                while (scan.hasNext()) {
+                    scan.next();
+                    n++;
+                }
+                scan.close();
+                assertEquals(504 * 20, n);
+            }
+        } finally {
+            ReadAhead.setEnabled(enabled);
+        }
+    }
+
+    /**
+     * A foreground read whose freed frame is taken meanwhile by read-ahead of
+     * the very page it reads uses that copy, though the pool is then full of
+     * dirty and pinned pages.
+     */
+    @Test public void readAheadIntoFreedFrame() throws Exception {
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        HeapFile dirty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        bp = Database.resetBufferPool(2);
+        bp.insertTuple(tid, dirty.getId(), Utility.getHeapTuple(1, 2));
+        final PageId second = new HeapPageId(f.getId(), 1);
+        bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        final boolean[] readAhead = {false};
+        // the first page goes to the arena; right then, the second is read ahead into its frame
+        bp.setArena(new PageArena(8, BufferPool.getPageSize()) {
+            @Override
+            public synchronized boolean put(PageId pid, byte[] data) {
+                boolean put = super.put(pid, data);
+                long epoch = bp.prefetchEpoch();
+                readAhead[0] = bp.prefetched(f.readPage(second), epoch);
+                return put;
+            }
+        });
+        Page page = bp.pinPage(tid, second, Permissions.READ_ONLY);
+        assertTrue(readAhead[0]);
+        assertSame(bp.peekPage(second), page);
+        assertEquals(2, bp.getFramesTaken());
+        bp.unpinPage(tid, second);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
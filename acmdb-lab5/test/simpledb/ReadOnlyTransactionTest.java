@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadOnlyTransactionTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A read-only transaction locks what it reads, cannot write, and
+     * releases its locks when it completes.
+     */
+    @Test public void readOnly() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.beginReadOnly(tid);
+        assertTrue(bp.isReadOnly(tid));
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertTrue(bp.holdsLock(tid, pid));
+        try {
+            bp.getPage(tid, pid, Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(3, 2));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(LockMode.SHARED, bp.getLockManager().getLockMode(tid, pid));
+
+        bp.transactionComplete(tid, true);
+        assertFalse(bp.isReadOnly(tid));
+        assertFalse(bp.holdsLock(tid, pid));
+        assertEquals(0, bp.getLockManager().getLockedResourceCount());
+    }
+
+    /**
+     * A read-only transaction takes shared table, record and key locks only.
+     */
+    @Test public void noExclusiveLocks() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.beginReadOnly(tid);
+        RecordId rid = new RecordId(new HeapPageId(empty.getId(), 0), 0);
+        IndexKey key = new IndexKey(empty.getId(), new IntField(0));
+        bp.lockTable(tid, empty.getId(), LockMode.INTENTION_SHARED);
+        bp.lockRecord(tid, rid, LockMode.SHARED);
+        bp.lockKey(tid, key, LockMode.SHARED);
+        for (LockMode mode : new LockMode[]{LockMode.INTENTION_EXCLUSIVE,
+                LockMode.SHARED_INTENTION_EXCLUSIVE, LockMode.EXCLUSIVE}) {
+            try {
+                bp.lockTable(tid, empty.getId(), mode);
+                fail("expected DbException");
+            } catch (DbException e) {
+                // expected
+            }
+        }
+        try {
+            bp.lockRecord(tid, rid, LockMode.EXCLUSIVE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            bp.lockKey(tid, key, LockMode.EXCLUSIVE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertFalse(bp.tryLockRecord(tid, rid, LockMode.EXCLUSIVE));
+        assertFalse(bp.tryLockKey(tid, key, LockMode.EXCLUSIVE));
+        for (LockMode mode : bp.getLockManager().getLocks(tid).values())
+            assertTrue(mode == LockMode.SHARED || mode == LockMode.INTENTION_SHARED);
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * A read-only transaction writes nothing to the log.
+     */
+    @Test public void noLogRecords() throws Exception {
+        int records = Database.getLogFile().getTotalRecords();
+        Transaction t = new Transaction();
+        t.startReadOnly();
+        assertTrue(t.isReadOnly());
+        DbFileIterator it = empty.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(3, n);
+        t.commit();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+        assertEquals(0, bp.getLockManager().getLockedResourceCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadOnlyTransactionTest.class);
+    }
+}
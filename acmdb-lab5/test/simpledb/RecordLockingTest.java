@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+    private List<Tuple> stored;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+        stored = scan(new TransactionId());
+        assertEquals(3, stored.size());
+    }
+
+    private List<Tuple> scan(TransactionId tid) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) tuples.add(it.next());
+        it.close();
+        bp.transactionComplete(tid);
+        return tuples;
+    }
+
+    private static int firstField(Tuple t) {
+        return ((IntField) t.getField(0)).getValue();
+    }
+
+    /**
+     * Transactions changing different tuples of the same page proceed
+     * without waiting, and commit and abort independently.
+     */
+    @Test(timeout = 10000) public void samePage() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        bp.deleteTuple(t1, stored.get(0));
+        bp.deleteTuple(t2, stored.get(1));
+        Tuple inserted = Utility.getHeapTuple(3, 2);
+        bp.insertTuple(t2, empty.getId(), inserted);
+        // the slot t1 emptied is not reused while t1 may restore it; t2 may
+        // reuse its own
+        assertFalse(stored.get(0).getRecordId().equals(inserted.getRecordId()));
+        assertEquals(0, bp.getLockManager().getWaitingCount());
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        List<Integer> expected = new ArrayList<>();
+        expected.add(0);
+        expected.add(2);
+        expected.add(3);
+        List<Integer> found = new ArrayList<>();
+        for (Tuple t : scan(new TransactionId())) found.add(firstField(t));
+        Collections.sort(found);
+        assertEquals(expected, found);
+
+        // only committed tuples went to disk
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+        found.clear();
+        for (Tuple t : scan(new TransactionId())) found.add(firstField(t));
+        Collections.sort(found);
+        assertEquals(expected, found);
+    }
+
+    /**
+     * A scan waits for a tuple deleted by a running transaction, and finds it
+     * again once that transaction aborts.
+     */
+    @Test(timeout = 10000) public void scanWaitsForDelete() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, stored.get(1));
+        final List<Tuple> found = new ArrayList<>();
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    found.addAll(scan(new TransactionId()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        for (int i = 0; i < 200 && bp.getLockManager().getWaitingCount() == 0; i++) Thread.sleep(5);
+        assertEquals(1, bp.getLockManager().getWaitingCount());
+        assertTrue(reader.isAlive());
+
+        bp.transactionComplete(writer, false);
+        reader.join(1000);
+        assertFalse(reader.isAlive());
+        assertEquals(3, found.size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int n) {
+        return new HeapPageId(-1, n);
+    }
+
+    /**
+     * Unit test for ClockPolicy: a referenced page gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy p = new ClockPolicy();
+        for (int i = 0; i < 3; i++) p.admit(pid(i));
+        // first sweep clears all bits, then page 0 is the first unreferenced one
+        assertEquals(pid(0), p.evict(x -> true));
+        p.access(pid(1));
+        assertEquals(pid(2), p.evict(x -> true));
+        assertEquals(pid(1), p.evict(x -> true));
+        assertNull(p.evict(x -> true));
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages referenced once are evicted before pages
+     * referenced K times, no matter how recent.
+     */
+    @Test public void lruKScanResistance() {
+        ReplacementPolicy p = new LruKPolicy(2);
+        p.admit(pid(0));
+        p.access(pid(0));
+        for (int i = 1; i <= 3; i++) p.admit(pid(i));
+        assertEquals(pid(1), p.evict(x -> true));
+        assertEquals(pid(2), p.evict(x -> true));
+        assertEquals(pid(3), p.evict(x -> true));
+        assertEquals(pid(0), p.evict(x -> true));
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: a page re-admitted while remembered in the
+     * ghost queue is promoted to the main queue.
+     */
+    @Test public void twoQueuePromotion() {
+        ReplacementPolicy p = new TwoQueuePolicy(8);
+        for (int i = 0; i < 4; i++) p.admit(pid(i));
+        assertEquals(pid(0), p.evict(x -> true));
+        p.admit(pid(0));
+        // pid(0) now lives in Am; the probation queue is still over its share
+        assertEquals(pid(1), p.evict(x -> true));
+        assertEquals(pid(0), p.evict(x -> true));
+        assertEquals(pid(2), p.evict(x -> true));
+        assertEquals(pid(3), p.evict(x -> true));
+    }
+
+    /**
+     * Unit test for the evictable predicate: pages that may not be evicted are
+     * skipped but stay resident.
+     */
+    @Test public void skipsUnevictable() {
+        for (ReplacementPolicy p : new ReplacementPolicy[]{new ClockPolicy(), new LruKPolicy(2), new TwoQueuePolicy(4)}) {
+            p.admit(pid(0));
+            p.admit(pid(1));
+            assertEquals(p.getName(), pid(1), p.evict(x -> !x.equals(pid(0))));
+            assertNull(p.getName(), p.evict(x -> !x.equals(pid(0))));
+            assertEquals(p.getName(), pid(0), p.evict(x -> true));
+        }
+    }
+
+    /**
+     * Unit test for ReplacementPolicy.hottestFirst(): the reverse of the
+     * eviction order.
+     */
+    @Test public void hottestFirst() {
+        ReplacementPolicy p = new LruKPolicy(2);
+        p.admit(pid(0));
+        p.access(pid(0));
+        p.admit(pid(1));
+        p.admit(pid(2));
+        assertEquals(Arrays.asList(pid(0), pid(2), pid(1)), p.hottestFirst());
+
+        p = new TwoQueuePolicy(8);
+        for (int i = 0; i < 3; i++) p.admit(pid(i));
+        assertEquals(Arrays.asList(pid(2), pid(1), pid(0)), p.hottestFirst());
+    }
+
+    /**
+     * Unit test for BufferPool.createPolicy()
+     */
+    @Test public void createPolicy() {
+        assertEquals("clock", BufferPool.createPolicy("clock", 10).getName());
+        assertEquals("2q", BufferPool.createPolicy("2Q", 10).getName());
+        assertEquals("lru-3", BufferPool.createPolicy("lru-3", 10).getName());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanRingTest extends SimpleDbTestBase {
+    private BufferPool bp;
+    private HeapFile small;
+    private HeapFile big;
+
+    @Before public void setUp() throws Exception {
+        bp = Database.resetBufferPool(10);
+        bp.setScanRing(0.5, 2);
+        small = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+    }
+
+    /**
+     * Unit test for BufferPool.getScanRing()
+     */
+    @Test public void threshold() {
+        assertNull(bp.getScanRing(small.numPages()));
+        ScanRing ring = bp.getScanRing(big.numPages());
+        assertNotNull(ring);
+        assertEquals(2, ring.getSize());
+    }
+
+    /**
+     * A scan over a table twice the size of the pool leaves the pages of
+     * another table in the pool.
+     */
+    @Test public void scanKeepsWorkingSet() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(504 * 20, count);
+
+        long hits = bp.getHitCount();
+        for (int i = 0; i < small.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(small.getId(), i), Permissions.READ_ONLY);
+        assertEquals(hits + small.numPages(), bp.getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page sitting in a ring is moved to the pool when requested without
+     * the ring, so there is never more than one copy of it.
+     */
+    @Test public void adoptRingPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(big.getId(), 0);
+        Page ringPage = bp.getPage(tid, pid, Permissions.READ_ONLY, bp.getScanRing(big.numPages()));
+        assertSame(ringPage, bp.getPage(tid, pid, Permissions.READ_WRITE));
+        assertSame(ringPage, bp.getPage(tid, pid, Permissions.READ_ONLY, bp.getScanRing(big.numPages())));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        bp.transactionComplete(tid);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        int n = 0;
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * A snapshot neither waits for a writer nor sees its changes, committed
+     * or not; versions kept for it go once it ends.
+     */
+    @Test(timeout = 10000) public void readersDoNotBlock() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, empty.getId(), Utility.getHeapTuple(3, 2));
+        // the writer holds an exclusive lock on the page
+        assertEquals(3, count(snapshot));
+        bp.transactionComplete(writer);
+        assertEquals(3, count(snapshot));
+        assertEquals(1, bp.getVersionCount());
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(4, count(later));
+        bp.transactionComplete(later);
+        bp.transactionComplete(snapshot);
+        assertEquals(0, bp.getVersionCount());
+        assertEquals(4, count(new TransactionId()));
+    }
+
+    /**
+     * A NO FORCE commit through Transaction prepares once, so it retains one
+     * version of the page it changed, which stays dirty until written back.
+     */
+    @Test public void commitPreparedOnce() throws Exception {
+        bp.startPageCleaner(1000, 0, 1000, 60000);
+        try {
+            TransactionId snapshot = new TransactionId();
+            bp.beginSnapshot(snapshot);
+            Transaction writer = new Transaction();
+            writer.start();
+            bp.insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(3, 2));
+            writer.commit();
+            assertEquals(1, bp.getVersionCount());
+            assertEquals(3, count(snapshot));
+            bp.transactionComplete(snapshot);
+        } finally {
+            bp.shutdown();
+        }
+    }
+
+    /**
+     * A page a snapshot reads from disk is not kept in the pool if a newer
+     * version reached the disk meanwhile, as locking readers would read the
+     * stale copy from the pool.
+     */
+    @Test public void staleReadNotCached() throws Exception {
+        final HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        final Runnable[] hook = new Runnable[1];
+        HeapFile file = new HeapFile(empty.getFile(), empty.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId id) {
+                Page page = super.readPage(id);
+                Runnable r = hook[0];
+                hook[0] = null;
+                if (r != null) r.run();
+                return page;
+            }
+        };
+        Database.getCatalog().addTable(file, "stale");
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        // between the read of the snapshot and its return, a writer commits
+        // a tuple to disk and the page leaves the pool
+        hook[0] = () -> {
+            try {
+                TransactionId writer = new TransactionId();
+                bp.insertTuple(writer, file.getId(), Utility.getHeapTuple(3, 2));
+                bp.transactionComplete(writer);
+                bp.discardPage(pid);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        HeapPage page = (HeapPage) bp.getPage(snapshot, pid, Permissions.READ_ONLY);
+        assertEquals(3, page.getNumSlots() - page.getNumEmptySlots());
+        bp.transactionComplete(snapshot);
+
+        TransactionId reader = new TransactionId();
+        page = (HeapPage) bp.getPage(reader, pid, Permissions.READ_ONLY);
+        assertEquals(4, page.getNumSlots() - page.getNumEmptySlots());
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A snapshot cannot write.
+     */
+    @Test public void readOnly() throws Exception {
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        try {
+            bp.insertTuple(snapshot, empty.getId(), Utility.getHeapTuple(3, 2));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            bp.getPage(snapshot, new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class WarmRestartTest extends SimpleDbTestBase {
+    private HeapFile f;
+    private File hotPages;
+
+    @Before public void setUp() throws Exception {
+        f = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        hotPages = File.createTempFile("hotpages", ".txt");
+        hotPages.deleteOnExit();
+    }
+
+    private PageId pid(int pgNo) {
+        return new HeapPageId(f.getId(), pgNo);
+    }
+
+    /**
+     * Unit test for WarmRestart.save() and load()
+     */
+    @Test public void saveAndLoad() throws Exception {
+        PageId btree = new BTreePageId(f.getId(), 3, BTreePageId.LEAF);
+        WarmRestart.save(Arrays.asList(pid(2), btree, pid(0)), hotPages);
+        assertEquals(Arrays.asList(pid(2), btree, pid(0)), WarmRestart.load(hotPages));
+    }
+
+    /**
+     * The pages cached before a restart are cached again after it, without
+     * the queries reading them from disk.
+     */
+    @Test public void warmRestart() throws Exception {
+        BufferPool bp = Database.resetBufferPool(3);
+        bp.setHotPageFile(hotPages, 0);
+        TransactionId tid = new TransactionId();
+        for (int i : new int[]{1, 4, 5})
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        Database.getLogFile().shutdown();
+
+        bp = Database.resetBufferPool(3);
+        bp.setHotPageFile(hotPages, 0);
+        bp.loadHotPages().join();
+        assertNull(bp.peekPage(pid(0)));
+        long read = DiskStats.HEAP.getBytesRead();
+        tid = new TransactionId();
+        for (int i : new int[]{1, 4, 5})
+            assertNotNull(bp.getPage(tid, pid(i), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+        assertEquals(read, DiskStats.HEAP.getBytesRead());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmRestartTest.class);
+    }
+}